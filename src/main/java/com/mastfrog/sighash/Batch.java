@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Hashes many source trees in one JVM, reading one job per line as JSON,
+ * e.g.
+ * <pre>
+ * {"id":"foo-1.0","sources":["foo/src"],"classpath":"a.jar:b.jar","mode":"deep","algorithms":["SHA-256"]}
+ * </pre> and writing one result per line as each job completes, e.g.
+ * <pre>
+ * {"id":"foo-1.0","hashes":{"SHA-256":"..."},"classes":12,"errors":0,"millis":730}
+ * </pre> or, if the job failed, <code>{"id":"foo-1.0","error":"..."}</code>.
+ * Optional job properties are <code>lazy</code>, <code>tokens</code> and
+ * <code>merkle</code>, as for the command-line switches; <code>id</code>
+ * defaults to the line number. Jobs run on a fixed number of worker threads,
+ * each of which keeps its own compiler and file manager for every job it
+ * runs.
+ *
+ * @author Tim Boudreau
+ */
+final class Batch {
+
+    private static final Object DONE = new Object();
+    private final PrintStream out;
+    private final int threads;
+
+    Batch(PrintStream out, int threads) {
+        this.out = out;
+        this.threads = Math.max(1, threads);
+    }
+
+    void run(BufferedReader in) throws IOException, InterruptedException {
+        // Bounded, so a huge job list is not read into memory ahead of
+        // the workers
+        BlockingQueue<Object> jobs = new ArrayBlockingQueue<>(threads * 2);
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> work(jobs), "sighash-batch-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            int lineNumber = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber++;
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#") && !put(jobs, new Job(lineNumber, line), workers)) {
+                    throw new IllegalStateException("All batch workers have died");
+                }
+            }
+        } finally {
+            for (int i = 0; i < threads; i++) {
+                if (!put(jobs, DONE, workers)) {
+                    break;
+                }
+            }
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static boolean put(BlockingQueue<Object> jobs, Object item, List<Thread> workers) throws InterruptedException {
+        // Waits for space, giving up if no worker is left to make any
+        while (!jobs.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            boolean alive = false;
+            for (Thread worker : workers) {
+                alive |= worker.isAlive();
+            }
+            if (!alive) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void work(BlockingQueue<Object> jobs) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, Locale.getDefault(), UTF_8);
+        try {
+            for (Object job = jobs.take(); job != DONE; job = jobs.take()) {
+                String result = Json.toString(((Job) job).run(compiler, fileManager));
+                synchronized (out) {
+                    out.println(result);
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                fileManager.close();
+            } catch (IOException ex) {
+                // Every job's result, including any error, has already been
+                // written to the output, and stderr is not part of the
+                // batch protocol - there is nothing left to report this to
+            }
+        }
+    }
+
+    private static final class Job {
+
+        private final int lineNumber;
+        private final String line;
+
+        Job(int lineNumber, String line) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+
+        Map<String, Object> run(JavaCompiler compiler, StandardJavaFileManager fileManager) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", String.valueOf(lineNumber));
+            long start = System.currentTimeMillis();
+            try {
+                Object parsed = Json.parse(line);
+                if (!(parsed instanceof Map<?, ?>)) {
+                    throw new IllegalArgumentException("Job is not a JSON object");
+                }
+                Map<?, ?> job = (Map<?, ?>) parsed;
+                if (job.get("id") != null) {
+                    result.put("id", String.valueOf(job.get("id")));
+                }
+                List<String> sources = strings(job.get("sources"));
+                if (sources.isEmpty()) {
+                    throw new IllegalArgumentException("No sources");
+                }
+                List<Path> paths = new ArrayList<>(sources.size());
+                for (String src : sources) {
+                    paths.add(Paths.get(src));
+                }
+                List<String> cp = strings(job.get("classpath"));
+                List<String> algorithms = strings(job.get("algorithms"));
+                if (algorithms.isEmpty()) {
+                    algorithms = Collections.singletonList("SHA-512");
+                }
+                String mode = job.get("mode") == null ? "shallow" : job.get("mode").toString();
+                if (!"deep".equals(mode) && !"shallow".equals(mode)) {
+                    throw new IllegalArgumentException("Mode should be deep or shallow, not " + mode);
+                }
+                boolean deep = "deep".equals(mode);
+                SigTreeConfig config = new SigTreeConfig().threads(1)
+                        .lazySourcePath(Boolean.TRUE.equals(job.get("lazy")))
+                        .compactTokens(Boolean.TRUE.equals(job.get("tokens")));
+                AtomicInteger errors = new AtomicInteger();
+                SignatureHashGenerator gen = new SignatureHashGenerator(cp.isEmpty() ? null
+                        : String.join(File.pathSeparator, cp), paths.toArray(new Path[0]))
+                        .reuse(compiler, fileManager)
+                        .onError(diag -> {
+                            if (diag.getKind() == Diagnostic.Kind.ERROR) {
+                                errors.incrementAndGet();
+                            }
+                        });
+                SigTree tree = SigTree.create(gen, config);
+                Map<String, String> hashes;
+                if (Boolean.TRUE.equals(job.get("merkle"))) {
+                    hashes = new LinkedHashMap<>();
+                    for (String alg : algorithms) {
+                        hashes.put(alg, tree.merkleRoot(alg, deep));
+                    }
+                } else {
+                    hashes = tree.hashes(deep, algorithms.toArray(new String[0]));
+                }
+                int classes = 0;
+                for (Iterator<ClassSignature> it = tree.iterator(); it.hasNext(); it.next()) {
+                    classes++;
+                }
+                result.put("hashes", hashes);
+                result.put("classes", classes);
+                result.put("errors", errors.get());
+                result.put("millis", System.currentTimeMillis() - start);
+            } catch (Throwable ex) {
+                // Including errors from javac, such as StackOverflowError,
+                // which would otherwise kill the worker and leave the
+                // reader blocked forever on a full queue
+                result.put("error", String.valueOf(ex));
+            }
+            return result;
+        }
+
+        private static List<String> strings(Object o) {
+            List<String> result = new ArrayList<>();
+            if (o instanceof List<?>) {
+                for (Object item : (List<?>) o) {
+                    result.add(String.valueOf(item));
+                }
+            } else if (o != null) {
+                result.add(o.toString());
+            }
+            return result;
+        }
+    }
+}
@@ -26,21 +26,35 @@ package com.mastfrog.sighash;
 import static com.mastfrog.sighash.MethodSignature.bytes;
 import static com.mastfrog.sighash.MethodSignature.compareCollections;
 import static com.mastfrog.sighash.MethodSignature.sort;
-import static com.mastfrog.sighash.MethodSignature.typeToString;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ModuleElement;
 import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.type.TypeMirror;
 
 /**
+ * Signature of a single class. Once its members have been entered, a class
+ * signature is <i>frozen</i> - its members are sorted once and may no longer
+ * be modified, and per-algorithm digests of it are computed at most once.
  *
  * @author Tim Boudreau
  */
@@ -48,12 +62,19 @@ public final class ClassSignature implements Signature, Comparable<ClassSignatur
 
     private final ElementKind kind;
     private final String name;
+    private final String packageName;
+    private final String moduleName;
+    private String sourceFile;
+    private Set<String> dependencies = Collections.emptySet();
     private final NestingKind nestingKind;
     private final String supertype;
     private final List<String> typeParams;
-    private final List<MethodSignature> methods = new ArrayList<>();
-    private final List<FieldSignature> fields = new ArrayList<>();
+    private List<MethodSignature> methods = new ArrayList<>();
+    private List<FieldSignature> fields = new ArrayList<>();
     private final List<String> ifaces;
+    private final Map<String, byte[]> shallowDigests = new ConcurrentHashMap<>(4);
+    private final Map<String, byte[]> deepDigests = new ConcurrentHashMap<>(4);
+    private volatile boolean frozen;
     private static final byte[] OPEN_CLASS = bytes(0xFF, 0xF3, 0xE2);
     private static final byte[] CLOSE_CLASS = bytes(0xFE, 0xF2, 0xE1);
     private static final byte[] DELIM = bytes(0x00, 0xFD, 0X0A);
@@ -61,29 +82,153 @@ public final class ClassSignature implements Signature, Comparable<ClassSignatur
     private static final byte[] DELIM2 = bytes(0x00, 0xFB);
     private static final byte[] DELIM3 = bytes(0xD2, 0xDA);
 
-    ClassSignature(TypeElement el) {
+    ClassSignature(TypeElement el, TypeRenderer types) {
         kind = el.getKind();
         name = el.getQualifiedName().toString();
+        Element enclosing = el.getEnclosingElement();
+        while (enclosing != null && !(enclosing instanceof PackageElement)) {
+            enclosing = enclosing.getEnclosingElement();
+        }
+        packageName = enclosing == null ? "" : ((PackageElement) enclosing).getQualifiedName().toString();
+        Element module = enclosing == null ? null : enclosing.getEnclosingElement();
+        moduleName = module instanceof ModuleElement && !((ModuleElement) module).isUnnamed()
+                ? ((ModuleElement) module).getQualifiedName().toString() : null;
         nestingKind = el.getNestingKind();
         List<? extends TypeParameterElement> params = el.getTypeParameters();
         if (!params.isEmpty()) {
-            typeParams = new ArrayList<>();
+            List<String> tps = new ArrayList<>();
             for (TypeParameterElement typeParam : params) {
-                typeParams.add(typeToString(typeParam.asType()));
+                tps.add(types.render(typeParam.asType()));
             }
+            typeParams = Collections.unmodifiableList(tps);
         } else {
             typeParams = null;
         }
         List<? extends TypeMirror> tms = el.getInterfaces();
         if (!tms.isEmpty()) {
-            ifaces = new ArrayList<>();
+            List<String> ifs = new ArrayList<>();
             for (TypeMirror tm : tms) {
-                ifaces.add(typeToString(tm));
+                ifs.add(types.render(tm));
             }
+            Collections.sort(ifs);
+            ifaces = Collections.unmodifiableList(ifs);
         } else {
             ifaces = null;
         }
-        supertype = typeToString(el.getSuperclass());
+        supertype = types.render(el.getSuperclass());
+    }
+
+    private ClassSignature(ElementKind kind, String name, String packageName, String moduleName,
+            NestingKind nestingKind, String supertype, List<String> typeParams, List<String> ifaces) {
+        this.kind = kind;
+        this.name = name;
+        this.packageName = packageName;
+        this.moduleName = moduleName;
+        this.nestingKind = nestingKind;
+        this.supertype = supertype;
+        this.typeParams = typeParams == null ? null : Collections.unmodifiableList(typeParams);
+        this.ifaces = ifaces == null ? null : Collections.unmodifiableList(ifaces);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(kind.name());
+        out.writeUTF(name);
+        out.writeUTF(packageName);
+        SigTreeIO.writeString(moduleName, out);
+        out.writeUTF(nestingKind.name());
+        out.writeUTF(supertype);
+        SigTreeIO.writeStrings(typeParams, out);
+        SigTreeIO.writeStrings(ifaces, out);
+        SigTreeIO.writeString(sourceFile, out);
+        SigTreeIO.writeStrings(dependencies, out);
+        out.writeInt(methods.size());
+        for (MethodSignature m : methods) {
+            m.write(out);
+        }
+        out.writeInt(fields.size());
+        for (FieldSignature f : fields) {
+            f.write(out);
+        }
+    }
+
+    static ClassSignature read(DataInput in) throws IOException {
+        ClassSignature result = new ClassSignature(ElementKind.valueOf(in.readUTF()), in.readUTF(),
+                in.readUTF(), SigTreeIO.readString(in), NestingKind.valueOf(in.readUTF()), in.readUTF(),
+                SigTreeIO.readStrings(in), SigTreeIO.readStrings(in));
+        String file = SigTreeIO.readString(in);
+        result.source(file == null ? null : file.intern(), SigTreeIO.readUris(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            result.methods.add(MethodSignature.read(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            result.fields.add(FieldSignature.read(in));
+        }
+        result.freeze();
+        return result;
+    }
+
+    /**
+     * Record the source file this class was compiled from, and any others
+     * that its deep-mode closures read, so an incremental update knows when
+     * it must be recomputed.
+     */
+    void source(String sourceFile, Set<String> dependencies) {
+        if (frozen) {
+            throw new IllegalStateException("Frozen: " + name);
+        }
+        this.sourceFile = sourceFile;
+        this.dependencies = dependencies == null ? Collections.emptySet()
+                : Collections.unmodifiableSet(dependencies);
+    }
+
+    /**
+     * Estimate the bytes of heap this signature retains, including its
+     * methods, fields and their deep drilldowns, and any digests cached so
+     * far.  This is an approximation for deciding when a tree has grown too
+     * large to keep in memory, not an exact measurement.
+     *
+     * @return An estimate
+     */
+    public long estimatedBytes() {
+        long result = Footprint.OBJECT + 15 * Footprint.REFERENCE + Footprint.string(name)
+                + Footprint.string(packageName) + Footprint.string(moduleName) + Footprint.string(sourceFile)
+                + Footprint.string(supertype) + Footprint.list(typeParams) + Footprint.list(ifaces)
+                + Footprint.sharedSet(dependencies);
+        result += 48 + Footprint.align(16 + Footprint.REFERENCE * methods.size())
+                + Footprint.align(16 + Footprint.REFERENCE * fields.size());
+        for (MethodSignature m : methods) {
+            result += m.estimatedBytes();
+        }
+        for (FieldSignature f : fields) {
+            result += f.estimatedBytes();
+        }
+        for (byte[] digest : shallowDigests.values()) {
+            result += Footprint.SET_ENTRY + Footprint.align(16 + digest.length);
+        }
+        for (byte[] digest : deepDigests.values()) {
+            result += Footprint.SET_ENTRY + Footprint.align(16 + digest.length);
+        }
+        // The two digest maps
+        return result + 2 * 64;
+    }
+
+    /**
+     * The URI of the source file this class was compiled from, if known.
+     *
+     * @return A URI string or null
+     */
+    public String sourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * The URIs of other source files whose code is incorporated into this
+     * class's deep hash.
+     *
+     * @return A set of URI strings
+     */
+    public Set<String> dependencies() {
+        return dependencies;
     }
 
     public Iterable<? extends FieldSignature> fields() {
@@ -94,6 +239,53 @@ public final class ClassSignature implements Signature, Comparable<ClassSignatur
         return Collections.unmodifiableCollection(methods);
     }
 
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The package this class is in.
+     *
+     * @return The package name, or the empty string for the default package
+     */
+    public String packageName() {
+        return packageName;
+    }
+
+    /**
+     * The JPMS module this class is in, if it was compiled as part of a
+     * module.
+     *
+     * @return The module name, or null for the unnamed module
+     */
+    public String moduleName() {
+        return moduleName;
+    }
+
+    /**
+     * Get the digest of this class alone using the passed algorithm. Once the
+     * signature is frozen, the result is cached, so repeated calls for the
+     * same algorithm and depth do not walk the members again.
+     *
+     * @param algorithm A MessageDigest algorithm name
+     * @param deep Whether or not to include method bodies
+     * @return A digest
+     * @throws NoSuchAlgorithmException if the algorithm is unknown
+     */
+    public byte[] digest(String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        Map<String, byte[]> cache = deep ? deepDigests : shallowDigests;
+        byte[] result = cache.get(algorithm);
+        if (result == null) {
+            Hasher hasher = new Hasher(DigestFactory.create(algorithm));
+            hashInto(hasher, deep);
+            result = hasher.done();
+            if (frozen) {
+                cache.put(algorithm, result);
+            }
+        }
+        return result.clone();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(kind.name().toLowerCase()).append(' ');
@@ -156,14 +348,15 @@ public final class ClassSignature implements Signature, Comparable<ClassSignatur
         digest.accept(DELIM);
         digest.accept(typeParams);
         digest.accept(DELIM1);
-        sort(ifaces);
         digest.accept(ifaces);
-        sort(fields);
+        if (!frozen) {
+            sort(fields);
+            sort(methods);
+        }
         digest.accept(DELIM2);
         for (FieldSignature f : fields) {
             f.hashInto(digest, deep);
         }
-        sort(methods);
         digest.accept(DELIM3);
         for (MethodSignature m : methods) {
             m.hashInto(digest, deep);
@@ -172,9 +365,34 @@ public final class ClassSignature implements Signature, Comparable<ClassSignatur
     }
 
     void enter(BiConsumer<Consumer<MethodSignature>, Consumer<FieldSignature>> c) {
+        if (frozen) {
+            throw new IllegalStateException("Frozen: " + name);
+        }
         c.accept(methods::add, fields::add);
     }
 
+    /**
+     * Sort the members once and make this signature immutable, so that
+     * digests of it can be cached.
+     */
+    void freeze() {
+        if (frozen) {
+            return;
+        }
+        Collections.sort(fields);
+        Collections.sort(methods);
+        for (MethodSignature m : methods) {
+            m.freeze();
+        }
+        fields = Collections.unmodifiableList(fields);
+        methods = Collections.unmodifiableList(methods);
+        frozen = true;
+    }
+
+    boolean isFrozen() {
+        return frozen;
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
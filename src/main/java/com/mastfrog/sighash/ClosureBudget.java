@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+/**
+ * Limits on how far deep mode follows calls into code javac has source for,
+ * so that a single heavily connected method cannot pull most of a codebase
+ * into its closure. When a limit is reached, the qualified name of the callee
+ * is hashed in place of its body, so the result is still repeatable for the
+ * same sources and limits.
+ *
+ * @author Tim Boudreau
+ */
+public final class ClosureBudget {
+
+    public static final ClosureBudget UNLIMITED
+            = new ClosureBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    private final int maxDepth;
+    private final int maxNodes;
+    private final int maxCallees;
+
+    /**
+     * Create a budget.
+     *
+     * @param maxDepth The maximum depth of nested calls to descend into
+     * @param maxNodes The maximum number of source tree nodes to scan for the
+     * closure of any single public method or constructor
+     * @param maxCallees The maximum number of distinct callees to descend
+     * into for any single public method or constructor
+     */
+    public ClosureBudget(int maxDepth, int maxNodes, int maxCallees) {
+        if (maxDepth < 0 || maxNodes < 0 || maxCallees < 0) {
+            throw new IllegalArgumentException("Negative budget: " + maxDepth
+                    + ", " + maxNodes + ", " + maxCallees);
+        }
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.maxCallees = maxCallees;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public int maxNodes() {
+        return maxNodes;
+    }
+
+    public int maxCallees() {
+        return maxCallees;
+    }
+
+    /**
+     * Determine which limit, if any, prevents descending into another callee.
+     *
+     * @param depth The depth the callee would be scanned at
+     * @param nodes The number of nodes scanned so far
+     * @param callees The number of distinct callees descended into so far
+     * @return The exhausted limit, or null
+     */
+    Kind exhausted(int depth, int nodes, int callees) {
+        if (depth > maxDepth) {
+            return Kind.DEPTH;
+        } else if (nodes >= maxNodes) {
+            return Kind.NODES;
+        } else if (callees >= maxCallees) {
+            return Kind.CALLEES;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + maxDepth + ", nodes=" + maxNodes + ", callees=" + maxCallees;
+    }
+
+    /**
+     * The kinds of limit a budget imposes.
+     */
+    public enum Kind {
+        DEPTH,
+        NODES,
+        CALLEES
+    }
+}
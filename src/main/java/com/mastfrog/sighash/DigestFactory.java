@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates MessageDigests for an algorithm without a JCA provider lookup
+ * each time: the provider is resolved once, and each thread keeps a pristine
+ * prototype instance which is cloned to create new digests, falling back to
+ * instantiating from the resolved provider if the implementation does not
+ * support cloning. Safe to use from multiple threads; the digests it creates
+ * are not.
+ *
+ * @author Tim Boudreau
+ */
+final class DigestFactory {
+
+    private static final Map<String, DigestFactory> FACTORIES = new ConcurrentHashMap<>();
+    private final String algorithm;
+    private final Provider provider;
+    private final ThreadLocal<MessageDigest> prototypes;
+    private volatile boolean cloneable = true;
+
+    private DigestFactory(String algorithm) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        if (XXHash64Digest.ALGORITHM.equalsIgnoreCase(algorithm)) {
+            provider = null;
+            prototypes = ThreadLocal.withInitial(XXHash64Digest::new);
+        } else {
+            MessageDigest first = MessageDigest.getInstance(algorithm);
+            provider = first.getProvider();
+            prototypes = ThreadLocal.withInitial(this::instantiate);
+            prototypes.set(first);
+        }
+    }
+
+    /**
+     * Get the factory for an algorithm, which may be a JCA algorithm name or
+     * one this library supplies itself, such as <code>XXH64</code>.
+     *
+     * @param algorithm An algorithm name
+     * @return A factory
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    static DigestFactory forAlgorithm(String algorithm) throws NoSuchAlgorithmException {
+        DigestFactory result = FACTORIES.get(algorithm);
+        if (result == null) {
+            result = new DigestFactory(algorithm);
+            DigestFactory existing = FACTORIES.putIfAbsent(algorithm, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a new digest for an algorithm.
+     *
+     * @param algorithm An algorithm name
+     * @return A digest
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    static MessageDigest create(String algorithm) throws NoSuchAlgorithmException {
+        return forAlgorithm(algorithm).newDigest();
+    }
+
+    String algorithm() {
+        return algorithm;
+    }
+
+    MessageDigest newDigest() {
+        MessageDigest prototype = prototypes.get();
+        if (cloneable) {
+            try {
+                return (MessageDigest) prototype.clone();
+            } catch (CloneNotSupportedException ex) {
+                cloneable = false;
+            }
+        }
+        if (provider == null) {
+            return new XXHash64Digest();
+        }
+        return instantiate();
+    }
+
+    private MessageDigest instantiate() {
+        try {
+            return MessageDigest.getInstance(algorithm, provider);
+        } catch (NoSuchAlgorithmException ex) {
+            // The provider has already supplied one instance
+            throw new IllegalStateException(ex);
+        }
+    }
+}
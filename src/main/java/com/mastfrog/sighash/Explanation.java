@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Why a single method or constructor has the deep hash it does: the
+ * readable text of everything hashed for it, and the tree of callees its
+ * closure descended into, computed by attributing only the file that
+ * declares it and whatever its closure reaches, rather than the whole
+ * source tree.
+ *
+ * @author Tim Boudreau
+ */
+public final class Explanation {
+
+    private final String member;
+    private final String digest;
+    private final String tokens;
+    private final Node closure;
+
+    Explanation(String member, String digest, String tokens, Node closure) {
+        this.member = member;
+        this.digest = digest;
+        this.tokens = tokens;
+        this.closure = closure;
+    }
+
+    /**
+     * Get the member key, in the form used by manifests, e.g.
+     * <code>com.foo.Bar#baz(java.lang.String)</code>.
+     *
+     * @return The key
+     */
+    public String member() {
+        return member;
+    }
+
+    /**
+     * Get the digest of the member's drilldown, as incorporated into its
+     * deep hash, in the configured encoding.
+     *
+     * @return A base64 digest, or null if the member is implicit, such as an
+     * enum's <code>values()</code>, so only its signature is hashed
+     */
+    public String digest() {
+        return digest;
+    }
+
+    /**
+     * Get the text encoding of the member's drilldown, with the closures of
+     * callees inline, as it is hashed when compact tokens are not in use;
+     * the token encoding hashes the same sequence in binary form.
+     *
+     * @return The text
+     */
+    public String tokens() {
+        return tokens;
+    }
+
+    /**
+     * Get the tree of callees the drilldown reached, rooted at the member.
+     *
+     * @return The root node
+     */
+    public Node closure() {
+        return closure;
+    }
+
+    /**
+     * Get the source files whose code was incorporated.
+     *
+     * @return A set of URIs
+     */
+    public Set<String> sourceFiles() {
+        Set<String> result = new TreeSet<>();
+        closure.collectSources(result);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("member ").append(member).append('\n');
+        sb.append("digest ").append(digest == null ? "none" : digest).append('\n');
+        sb.append("closure:\n");
+        closure.format(1, sb);
+        sb.append("tokens:\n").append(tokens).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * What happened when a call was encountered while drilling through the
+     * closure.
+     */
+    public enum Kind {
+        /**
+         * The callee's source was scanned, and its closure hashed inline.
+         */
+        SCANNED,
+        /**
+         * The callee was already scanned from elsewhere in the closure, and
+         * the same text was hashed again.
+         */
+        CACHED,
+        /**
+         * The callee is already being scanned further up the call chain, so a
+         * recursion marker was hashed.
+         */
+        RECURSIVE,
+        /**
+         * The closure budget was exhausted, so only the callee's name was
+         * hashed.
+         */
+        BUDGET,
+        /**
+         * No source is available for the callee, so only its name was
+         * hashed.
+         */
+        NO_SOURCE
+    }
+
+    /**
+     * One call in the closure.
+     */
+    public static final class Node {
+
+        private final String name;
+        private final Kind kind;
+        private final String source;
+        private final List<Node> children = new ArrayList<>();
+
+        Node(String name, Kind kind, String source) {
+            this.name = name;
+            this.kind = kind;
+            this.source = source;
+        }
+
+        Node add(Node child) {
+            children.add(child);
+            return child;
+        }
+
+        /**
+         * Get the callee's name, as the qualified name of its type, a dot,
+         * and its simple name; for the root, the member key.
+         *
+         * @return The name
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Get how the callee contributed to the hash.
+         *
+         * @return The kind
+         */
+        public Kind kind() {
+            return kind;
+        }
+
+        /**
+         * Get the URI of the file which was scanned, for scanned nodes.
+         *
+         * @return A URI or null
+         */
+        public String source() {
+            return source;
+        }
+
+        /**
+         * Get the callees reached from this one, in the order they were
+         * hashed.
+         *
+         * @return An unmodifiable list
+         */
+        public List<Node> children() {
+            return Collections.unmodifiableList(children);
+        }
+
+        private void collectSources(Set<String> into) {
+            if (source != null) {
+                into.add(source);
+            }
+            for (Node child : children) {
+                child.collectSources(into);
+            }
+        }
+
+        private void format(int depth, StringBuilder sb) {
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+            sb.append(name).append(' ').append(kind.name().toLowerCase(Locale.US));
+            if (source != null) {
+                sb.append(' ').append(source);
+            }
+            sb.append('\n');
+            for (Node child : children) {
+                child.format(depth + 1, sb);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + kind;
+        }
+    }
+}
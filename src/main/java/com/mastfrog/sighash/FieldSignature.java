@@ -24,7 +24,9 @@
 package com.mastfrog.sighash;
 
 import static com.mastfrog.sighash.MethodSignature.bytes;
-import static com.mastfrog.sighash.MethodSignature.typeToString;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Consumer;
@@ -45,10 +47,41 @@ public final class FieldSignature implements Signature, Comparable<FieldSignatur
     private static final byte[] DELIM_1 = bytes(0xFD, 0x06, 0x01);
     private static final byte[] DELIM_2 = bytes(0xEA, 0x14, 0xBD);
 
-    FieldSignature(VariableElement el) {
+    FieldSignature(VariableElement el, TypeRenderer types) {
         this.modifiers = el.getModifiers();
         this.name = el.getSimpleName().toString();
-        this.type = typeToString(el.asType());
+        this.type = types.render(el.asType());
+    }
+
+    private FieldSignature(Set<Modifier> modifiers, String name, String type) {
+        this.modifiers = modifiers;
+        this.name = name;
+        this.type = type;
+    }
+
+    void write(DataOutput out) throws IOException {
+        SigTreeIO.writeModifiers(modifiers, out);
+        out.writeUTF(name);
+        out.writeUTF(type);
+    }
+
+    static FieldSignature read(DataInput in) throws IOException {
+        return new FieldSignature(SigTreeIO.readModifiers(in), in.readUTF(), in.readUTF());
+    }
+
+    long estimatedBytes() {
+        return Footprint.OBJECT + 3 * Footprint.REFERENCE + Footprint.ENUM_SET + Footprint.string(name)
+                + Footprint.string(type);
+    }
+
+    /**
+     * The field's simple name, which is also its key within its class, as
+     * in <code>com.foo.Bar#FIELD</code>.
+     *
+     * @return The name
+     */
+    public String name() {
+        return name;
     }
 
     @Override
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.util.Collection;
+
+/**
+ * Rough estimates of the heap retained by signatures, assuming a 64-bit VM
+ * with compressed references and compact (Latin-1) strings - close enough to
+ * decide when a tree is getting too large to keep in memory, not an exact
+ * measurement.
+ *
+ * @author Tim Boudreau
+ */
+final class Footprint {
+
+    static final long REFERENCE = 4;
+    static final long OBJECT = 16;
+    // A TreeMap.Entry, or a HashMap.Node plus its share of the table
+    static final long SET_ENTRY = 40;
+    // A RegularEnumSet, whose universe array is shared
+    static final long ENUM_SET = 24;
+
+    private Footprint() {
+        throw new AssertionError();
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    static long string(CharSequence s) {
+        // String object plus its byte array
+        return s == null ? 0 : 24 + align(16 + s.length());
+    }
+
+    static long list(Collection<? extends CharSequence> strings) {
+        if (strings == null) {
+            return 0;
+        }
+        long result = 24 + align(16 + REFERENCE * strings.size());
+        for (CharSequence s : strings) {
+            result += string(s);
+        }
+        return result;
+    }
+
+    /**
+     * Estimate a set of strings which are shared with other sets, so only
+     * the set itself counts.
+     */
+    static long sharedSet(Collection<?> set) {
+        return set == null || set.isEmpty() ? 0 : 48 + SET_ENTRY * set.size();
+    }
+
+    static long set(Collection<? extends CharSequence> strings) {
+        if (strings == null || strings.isEmpty()) {
+            return 0;
+        }
+        long result = sharedSet(strings);
+        for (CharSequence s : strings) {
+            result += string(s);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the local git binary to find which files changed between revisions.
+ *
+ * @author Tim Boudreau
+ */
+final class Git {
+
+    private Git() {
+        throw new AssertionError();
+    }
+
+    /**
+     * List files changed between two revisions, or between a revision and the
+     * working tree (including untracked files) if the head is null.  Renames
+     * are listed as a deletion and an addition, so both paths are included.
+     *
+     * @param dir A directory within the repository
+     * @param base The base revision
+     * @param head The head revision, or null
+     * @return Absolute paths, some of which may no longer exist
+     * @throws IOException If git fails
+     * @throws InterruptedException If interrupted
+     */
+    static List<Path> changedFiles(Path dir, String base, String head) throws IOException, InterruptedException {
+        Path top = topLevel(dir);
+        Set<String> names = new LinkedHashSet<>();
+        List<String> diff = new ArrayList<>(Arrays.asList("git", "diff", "--name-only", "--no-renames", base));
+        if (head != null) {
+            diff.add(head);
+        }
+        names.addAll(lines(run(top, diff.toArray(new String[0]))));
+        if (head == null) {
+            names.addAll(lines(run(top, "git", "ls-files", "--others", "--exclude-standard")));
+        }
+        List<Path> result = new ArrayList<>(names.size());
+        for (String name : names) {
+            result.add(top.resolve(name));
+        }
+        return result;
+    }
+
+    /**
+     * Find the root of the working tree containing a directory.
+     *
+     * @param dir A directory within the repository
+     * @return The root of the working tree
+     * @throws IOException If git fails
+     * @throws InterruptedException If interrupted
+     */
+    static Path topLevel(Path dir) throws IOException, InterruptedException {
+        return Paths.get(run(dir, "git", "rev-parse", "--show-toplevel").trim());
+    }
+
+    /**
+     * Check out a revision into a new, detached worktree in an empty directory,
+     * without touching the working tree <code>dir</code> belongs to.
+     *
+     * @param dir A directory within the repository
+     * @param revision The revision
+     * @param target An empty or nonexistent directory
+     * @throws IOException If git fails
+     * @throws InterruptedException If interrupted
+     */
+    static void addWorktree(Path dir, String revision, Path target) throws IOException, InterruptedException {
+        run(dir, "git", "worktree", "add", "--detach", "--quiet", target.toString(), revision);
+    }
+
+    /**
+     * Delete a worktree created with <code>addWorktree()</code>.
+     *
+     * @param dir A directory within the repository
+     * @param target The worktree
+     * @throws IOException If git fails
+     * @throws InterruptedException If interrupted
+     */
+    static void removeWorktree(Path dir, Path target) throws IOException, InterruptedException {
+        run(dir, "git", "worktree", "remove", "--force", target.toString());
+    }
+
+    private static List<String> lines(String output) {
+        List<String> result = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                result.add(line.trim());
+            }
+        }
+        return result;
+    }
+
+    private static String run(Path dir, String... command) throws IOException, InterruptedException {
+        Process proc = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = proc.getInputStream()) {
+            in.transferTo(out);
+        }
+        int exit = proc.waitFor();
+        if (exit != 0) {
+            throw new IOException(String.join(" ", command) + " exited with " + exit);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
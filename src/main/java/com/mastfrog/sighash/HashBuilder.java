@@ -36,4 +36,13 @@ interface HashBuilder {
 
     void enterClass(JavacTask task, TypeMirror type, TypeElement element, Trees trees);
 
+    /**
+     * Called once no more classes will be passed from a task, so anything
+     * cached for it can be released.
+     *
+     * @param task The task
+     */
+    default void taskFinished(JavacTask task) {
+    }
+
 }
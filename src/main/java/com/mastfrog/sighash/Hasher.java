@@ -24,7 +24,6 @@
 package com.mastfrog.sighash;
 
 import java.lang.reflect.Array;
-import java.nio.ByteBuffer;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.security.MessageDigest;
 import java.util.Base64;
@@ -60,7 +59,7 @@ public class Hasher implements Consumer<Object> {
         return finalDigest;
     }
 
-    private String stringify(Object o) {
+    private static String stringify(Object o) {
         String stringRep;
         if (o instanceof CharSequence) {
             stringRep = o.toString().trim();
@@ -82,14 +81,15 @@ public class Hasher implements Consumer<Object> {
         return stringRep;
     }
 
-    private static ByteBuffer intToByteBuffer(int val) {
-        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES);
-        buf.putInt(val);
-        buf.flip();
-        return buf;
+    private static int putInt(int val, byte[] into, int at) {
+        into[at] = (byte) (val >>> 24);
+        into[at + 1] = (byte) (val >>> 16);
+        into[at + 2] = (byte) (val >>> 8);
+        into[at + 3] = (byte) val;
+        return at + Integer.BYTES;
     }
 
-    private int lengthValue(Object o) {
+    private static int lengthValue(Object o) {
         if (o instanceof CharSequence) {
             return ((CharSequence) o).length();
         } else if (o instanceof Collection<?>) {
@@ -103,18 +103,32 @@ public class Hasher implements Consumer<Object> {
 
     void add(Object o) {
         assert finalDigest == null;
+        digest.update(encode(o));
+    }
+
+    /**
+     * Encode an object into the exact bytes that are added to a digest for
+     * it, so that the work can be done once and the result fed to several
+     * digests.
+     *
+     * @param o An object
+     * @return The bytes to hash for it
+     */
+    static byte[] encode(Object o) {
         if (o instanceof byte[]) {
-            digest.update((byte[]) o);
-        } else {
-            int lv = lengthValue(o);
-            if (lv > 0) {
-                digest.update(intToByteBuffer(-lv));
-            }
-            String stringRep = stringify(o);
-//            System.out.println(" - " + stringRep);
-            int hashCode = stringRep.hashCode();
-            digest.update(intToByteBuffer(hashCode));
-            digest.update(stringRep.getBytes(UTF_8));
+            return (byte[]) o;
+        }
+        int lv = lengthValue(o);
+        String stringRep = stringify(o);
+        byte[] chars = stringRep.getBytes(UTF_8);
+        int prefix = lv > 0 ? Integer.BYTES * 2 : Integer.BYTES;
+        byte[] result = new byte[prefix + chars.length];
+        int pos = 0;
+        if (lv > 0) {
+            pos = putInt(-lv, result, pos);
         }
+        pos = putInt(stringRep.hashCode(), result, pos);
+        System.arraycopy(chars, 0, result, pos, chars.length);
+        return result;
     }
 }
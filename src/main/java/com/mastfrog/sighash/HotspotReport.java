@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Per-method costs of deep mode, recorded while a SigTree is built when
+ * hotspots are enabled in its configuration, for finding which entry points
+ * make hashing slow - and so which classes to exclude or what closure budget
+ * to set.
+ *
+ * @author Tim Boudreau
+ */
+public final class HotspotReport {
+
+    private final Queue<Hotspot> hotspots = new ConcurrentLinkedQueue<>();
+
+    HotspotReport() {
+    }
+
+    void add(String method, int nodes, int callees, int recursions, long nanos) {
+        hotspots.add(new Hotspot(method, nodes, callees, recursions, nanos));
+    }
+
+    /**
+     * Get the number of methods recorded.
+     *
+     * @return The count
+     */
+    public int size() {
+        return hotspots.size();
+    }
+
+    /**
+     * Get the methods whose closures scanned the most source tree nodes.
+     *
+     * @param k The maximum number to return
+     * @return A list, largest first
+     */
+    public List<Hotspot> largestClosures(int k) {
+        return top(k, Comparator.comparingInt(Hotspot::nodes));
+    }
+
+    /**
+     * Get the methods which took longest to hash.
+     *
+     * @param k The maximum number to return
+     * @return A list, slowest first
+     */
+    public List<Hotspot> slowest(int k) {
+        return top(k, Comparator.comparingLong(Hotspot::nanos));
+    }
+
+    private List<Hotspot> top(int k, Comparator<Hotspot> comparator) {
+        List<Hotspot> all = new ArrayList<>(hotspots);
+        all.sort(comparator.reversed().thenComparing(Hotspot::method));
+        return all.size() <= k ? all : new ArrayList<>(all.subList(0, k));
+    }
+
+    /**
+     * Get a histogram of closure sizes in power-of-two buckets.
+     *
+     * @return A map of the lower bound of each bucket (0, 1, 2, 4, 8...) to
+     * the number of methods whose closure node count falls in it
+     */
+    public SortedMap<Integer, Integer> histogram() {
+        SortedMap<Integer, Integer> result = new TreeMap<>();
+        for (Hotspot h : hotspots) {
+            int bucket = h.nodes == 0 ? 0 : Integer.highestOneBit(h.nodes);
+            result.merge(bucket, 1, Integer::sum);
+        }
+        return result;
+    }
+
+    /**
+     * Format the report as text, with the top <code>k</code> methods by
+     * closure size and by time, and the histogram of closure sizes.
+     *
+     * @param k The number of methods to list in each section
+     * @return A report
+     */
+    public String format(int k) {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("Largest closures (nodes, callees, recursions, ms, method):\n");
+        for (Hotspot h : largestClosures(k)) {
+            sb.append("  ").append(h).append('\n');
+        }
+        sb.append("Slowest methods (nodes, callees, recursions, ms, method):\n");
+        for (Hotspot h : slowest(k)) {
+            sb.append("  ").append(h).append('\n');
+        }
+        sb.append("Closure sizes (nodes: methods):\n");
+        for (Map.Entry<Integer, Integer> e : histogram().entrySet()) {
+            int low = e.getKey();
+            sb.append("  ").append(low);
+            if (low > 1) {
+                sb.append('-').append(low * 2 - 1);
+            }
+            sb.append(": ").append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format(10);
+    }
+
+    /**
+     * The costs of hashing a single method or constructor.
+     */
+    public static final class Hotspot {
+
+        private final String method;
+        private final int nodes;
+        private final int callees;
+        private final int recursions;
+        private final long nanos;
+
+        Hotspot(String method, int nodes, int callees, int recursions, long nanos) {
+            this.method = method;
+            this.nodes = nodes;
+            this.callees = callees;
+            this.recursions = recursions;
+            this.nanos = nanos;
+        }
+
+        /**
+         * The method, as <code>com.foo.Bar#baz(int)</code>.
+         *
+         * @return The method
+         */
+        public String method() {
+            return method;
+        }
+
+        /**
+         * The number of source tree nodes scanned for the method's closure.
+         *
+         * @return The node count
+         */
+        public int nodes() {
+            return nodes;
+        }
+
+        /**
+         * The number of distinct callees descended into.
+         *
+         * @return The callee count
+         */
+        public int callees() {
+            return callees;
+        }
+
+        /**
+         * The number of times a recursive call was replaced by a marker.
+         *
+         * @return The recursion count
+         */
+        public int recursions() {
+            return recursions;
+        }
+
+        /**
+         * The wall-clock time spent hashing the method and its closure.
+         *
+         * @return The time in nanoseconds
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return nodes + "\t" + callees + "\t" + recursions + "\t"
+                    + String.format("%.3f", nanos / 1000000D) + "\t" + method;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON to read batch jobs and write results one per line,
+ * without a dependency:  objects parse to LinkedHashMaps, arrays to Lists,
+ * numbers to Longs or Doubles.
+ *
+ * @author Tim Boudreau
+ */
+final class Json {
+
+    private final String text;
+    private int pos;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object result = json.value();
+        json.whitespace();
+        if (json.pos != text.length()) {
+            throw json.error("Trailing characters");
+        }
+        return result;
+    }
+
+    static String toString(Object o) {
+        StringBuilder sb = new StringBuilder(256);
+        write(o, sb);
+        return sb.toString();
+    }
+
+    static void write(Object o, StringBuilder sb) {
+        if (o == null) {
+            sb.append("null");
+        } else if (o instanceof CharSequence) {
+            quote(o.toString(), sb);
+        } else if (o instanceof Number || o instanceof Boolean) {
+            sb.append(o);
+        } else if (o instanceof Map<?, ?>) {
+            sb.append('{');
+            for (Iterator<? extends Map.Entry<?, ?>> it = ((Map<?, ?>) o).entrySet().iterator(); it.hasNext();) {
+                Map.Entry<?, ?> e = it.next();
+                quote(String.valueOf(e.getKey()), sb);
+                sb.append(':');
+                write(e.getValue(), sb);
+                if (it.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            sb.append('}');
+        } else if (o instanceof Iterable<?>) {
+            sb.append('[');
+            for (Iterator<?> it = ((Iterable<?>) o).iterator(); it.hasNext();) {
+                write(it.next(), sb);
+                if (it.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            sb.append(']');
+        } else {
+            quote(o.toString(), sb);
+        }
+    }
+
+    private static void quote(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg + " at " + pos + " in " + text);
+    }
+
+    private void whitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char peek() {
+        whitespace();
+        if (pos >= text.length()) {
+            throw error("Unexpected end");
+        }
+        return text.charAt(pos);
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private Object value() {
+        char c = peek();
+        switch (c) {
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                return literal("true", Boolean.TRUE);
+            case 'f':
+                return literal("false", Boolean.FALSE);
+            case 'n':
+                return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return number();
+                }
+                throw error("Unexpected '" + c + "'");
+        }
+    }
+
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, pos)) {
+            throw error("Expected " + word);
+        }
+        pos += word.length();
+        return value;
+    }
+
+    private Map<String, Object> object() {
+        expect('{');
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (peek() == '}') {
+            pos++;
+            return result;
+        }
+        for (;;) {
+            if (peek() != '"') {
+                throw error("Expected a key");
+            }
+            String key = string();
+            expect(':');
+            result.put(key, value());
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect('}');
+                return result;
+            }
+        }
+    }
+
+    private List<Object> array() {
+        expect('[');
+        List<Object> result = new ArrayList<>();
+        if (peek() == ']') {
+            pos++;
+            return result;
+        }
+        for (;;) {
+            result.add(value());
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect(']');
+                return result;
+            }
+        }
+    }
+
+    private String string() {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (pos < text.length()) {
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= text.length()) {
+                break;
+            }
+            char esc = text.charAt(pos++);
+            switch (esc) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length()) {
+                        throw error("Bad unicode escape");
+                    }
+                    sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(esc);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Number number() {
+        int start = pos;
+        boolean integral = true;
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+            } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            pos++;
+        }
+        String num = text.substring(start, pos);
+        try {
+            return integral ? (Number) Long.parseLong(num) : (Number) Double.parseDouble(num);
+        } catch (NumberFormatException ex) {
+            throw error("Bad number " + num);
+        }
+    }
+}
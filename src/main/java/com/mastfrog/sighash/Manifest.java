@@ -0,0 +1,543 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * A compact, memory-mapped file of per-member digests, as produced by
+ * <code>SigTree.memberDigests()</code>, for codebases with millions of
+ * members. Keys are sorted by their UTF-8 bytes and stored in blocks, each
+ * key sharing whatever prefix it has in common with its predecessor
+ * (front coding - qualified names share long prefixes), followed by a
+ * fixed-width digest. A sparse index holds the offset of each block, whose
+ * first key is stored whole, so a lookup is a binary search over block
+ * first keys, and a scan of a single block.
+ * <p>
+ * Layout (big-endian): magic, digest length, entries per block, deep flag,
+ * algorithm name and hash of the whole tree (each length-prefixed UTF-8,
+ * the hash empty if none was stored); the blocks, whose entries are
+ * a varint count of bytes shared with the previous key, a varint suffix
+ * length, the suffix and the digest; an index of one long block offset per
+ * block; and a footer of index offset, block count, entry count and magic.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class Manifest {
+
+    static final int MAGIC = 0x53484D32; // SHM2
+    static final int DEFAULT_BLOCK_SIZE = 64;
+    // The algorithm name marking a reverse-call index
+    static final String CALLERS = "callers";
+    private static final int FOOTER_SIZE = 8 + 4 + 4 + 4;
+    private final ByteBuffer buf;
+    private final String algorithm;
+    private final boolean deep;
+    private final String hash;
+    private final int digestLength;
+    private final int blockSize;
+    private final int indexOffset;
+    private final int blockCount;
+    private final int size;
+
+    private Manifest(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        int limit = buf.limit();
+        if (limit < 17 + FOOTER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(limit - 4) != MAGIC) {
+            throw new IOException("Not a manifest");
+        }
+        digestLength = buf.getInt(4);
+        blockSize = buf.getInt(8);
+        deep = buf.get(12) != 0;
+        int algLength = buf.getShort(13);
+        byte[] alg = new byte[algLength];
+        for (int i = 0; i < algLength; i++) {
+            alg[i] = buf.get(15 + i);
+        }
+        algorithm = new String(alg, UTF_8);
+        int hashLength = buf.getShort(15 + algLength);
+        byte[] hashBytes = new byte[hashLength];
+        for (int i = 0; i < hashLength; i++) {
+            hashBytes[i] = buf.get(17 + algLength + i);
+        }
+        hash = hashLength == 0 ? null : new String(hashBytes, UTF_8);
+        indexOffset = (int) buf.getLong(limit - FOOTER_SIZE);
+        blockCount = buf.getInt(limit - FOOTER_SIZE + 8);
+        size = buf.getInt(limit - FOOTER_SIZE + 12);
+    }
+
+    /**
+     * Map a manifest file into memory.
+     *
+     * @param file The file
+     * @return A manifest
+     * @throws IOException If the file cannot be read or is not a manifest
+     */
+    public static Manifest open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Manifest too large to map: " + file);
+            }
+            // The mapping remains valid after the channel is closed
+            return new Manifest(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write a manifest.
+     *
+     * @param file The file to write
+     * @param algorithm The algorithm the digests were created with
+     * @param deep Whether they are deep digests
+     * @param hash The hash of the whole tree, as printed by the command line,
+     * or null
+     * @param digests The digests, all of which must be the same length
+     * @throws IOException If something goes wrong
+     */
+    public static void write(Path file, String algorithm, boolean deep, String hash, Map<String, byte[]> digests) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, algorithm, deep, hash, digests, DEFAULT_BLOCK_SIZE);
+        }
+    }
+
+    static void write(OutputStream stream, String algorithm, boolean deep, String hash, Map<String, byte[]> digests, int blockSize) throws IOException {
+        List<byte[]> keys = new ArrayList<>(digests.size());
+        List<byte[]> values = new ArrayList<>(digests.size());
+        Integer[] order = new Integer[digests.size()];
+        int digestLength = -1;
+        for (Map.Entry<String, byte[]> e : digests.entrySet()) {
+            byte[] digest = e.getValue();
+            if (digestLength == -1) {
+                digestLength = digest.length;
+            } else if (digest.length != digestLength) {
+                throw new IllegalArgumentException("Digest for " + e.getKey() + " is "
+                        + digest.length + " bytes, not " + digestLength);
+            }
+            order[keys.size()] = keys.size();
+            keys.add(e.getKey().getBytes(UTF_8));
+            values.add(digest);
+        }
+        // String order and UTF-8 byte order differ outside the BMP
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys.get(a), keys.get(b)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        byte[] alg = algorithm.getBytes(UTF_8);
+        out.writeInt(MAGIC);
+        out.writeInt(Math.max(0, digestLength));
+        out.writeInt(blockSize);
+        out.writeBoolean(deep);
+        out.writeShort(alg.length);
+        out.write(alg);
+        byte[] hashBytes = hash == null ? new byte[0] : hash.getBytes(UTF_8);
+        out.writeShort(hashBytes.length);
+        out.write(hashBytes);
+        long[] blockOffsets = new long[(order.length + blockSize - 1) / blockSize];
+        byte[] prev = null;
+        for (int i = 0; i < order.length; i++) {
+            byte[] key = keys.get(order[i]);
+            int shared = 0;
+            if (i % blockSize == 0) {
+                blockOffsets[i / blockSize] = offset(out);
+            } else {
+                int max = Math.min(prev.length, key.length);
+                while (shared < max && prev[shared] == key[shared]) {
+                    shared++;
+                }
+            }
+            writeVarint(out, shared);
+            writeVarint(out, key.length - shared);
+            out.write(key, shared, key.length - shared);
+            out.write(values.get(order[i]));
+            prev = key;
+        }
+        long indexOffset = offset(out);
+        for (long offset : blockOffsets) {
+            out.writeLong(offset);
+        }
+        out.writeLong(indexOffset);
+        out.writeInt(blockOffsets.length);
+        out.writeInt(order.length);
+        out.writeInt(MAGIC);
+        offset(out);
+        out.flush();
+    }
+
+    private static int offset(DataOutputStream out) throws IOException {
+        int result = out.size();
+        if (result == Integer.MAX_VALUE) {
+            // DataOutputStream's counter sticks at Integer.MAX_VALUE rather
+            // than overflowing, and open() cannot map anything larger
+            throw new IOException("Manifest too large");
+        }
+        return result;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * The algorithm the digests were created with, or <code>callers</code>
+     * for a reverse-call index.
+     *
+     * @return An algorithm name
+     */
+    public String algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Whether the digests include method bodies.
+     *
+     * @return True if they are deep digests
+     */
+    public boolean isDeep() {
+        return deep;
+    }
+
+    /**
+     * The number of keys in this manifest.
+     *
+     * @return The entry count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the hash of the whole tree this manifest was written from, which
+     * is what the command line printed for the manifest's algorithm when it
+     * wrote it.
+     *
+     * @return A URL-safe base-64 hash, or null if none was stored
+     */
+    public String hash() {
+        return hash;
+    }
+
+    /**
+     * Look up the digest for a key.
+     *
+     * @param key A class name, or member key such as
+     * <code>com.foo.Bar#baz(int)</code>
+     * @return The digest, or null if not present
+     */
+    public byte[] get(String key) {
+        byte[] target = key.getBytes(UTF_8);
+        // Find the last block whose first key is <= the target
+        int lo = 0;
+        int hi = blockCount - 1;
+        int block = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareFirstKey(blockOffset(mid), target);
+            if (cmp == 0) {
+                return digestAt(skipKey(blockOffset(mid)));
+            } else if (cmp < 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+        Cursor cursor = new Cursor(blockOffset(block));
+        int count = Math.min(blockSize, size - block * blockSize);
+        for (int i = 0; i < count; i++) {
+            cursor.next();
+            int cmp = Arrays.compareUnsigned(cursor.key, 0, cursor.keyLength, target, 0, target.length);
+            if (cmp == 0) {
+                return digestAt(cursor.digestOffset);
+            } else if (cmp > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Visit every key and digest in key order.
+     *
+     * @param consumer A consumer
+     */
+    public void forEach(BiConsumer<String, byte[]> consumer) {
+        for (int block = 0; block < blockCount; block++) {
+            Cursor cursor = new Cursor(blockOffset(block));
+            int count = Math.min(blockSize, size - block * blockSize);
+            for (int i = 0; i < count; i++) {
+                cursor.next();
+                consumer.accept(new String(cursor.key, 0, cursor.keyLength, UTF_8),
+                        digestAt(cursor.digestOffset));
+            }
+        }
+    }
+
+    /**
+     * Visit the keys and digests whose keys start with a prefix, such as a
+     * class or package name, in key order.
+     *
+     * @param prefix A prefix
+     * @param consumer A consumer
+     */
+    public void forEach(String prefix, BiConsumer<String, byte[]> consumer) {
+        for (Iterator<Map.Entry<String, byte[]>> it = iterator(prefix); it.hasNext();) {
+            Map.Entry<String, byte[]> e = it.next();
+            consumer.accept(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Iterate the entries whose keys start with a prefix, in key order,
+     * decoding them as needed.
+     *
+     * @param prefix A prefix, or the empty string for all entries
+     * @return An iterator
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator(String prefix) {
+        byte[] target = prefix.getBytes(UTF_8);
+        // Start at the last block whose first key is < the prefix
+        int lo = 0;
+        int hi = blockCount - 1;
+        int start = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareFirstKey(blockOffset(mid), target) < 0) {
+                start = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return new EntryIterator(start, target);
+    }
+
+    /**
+     * Write a reverse-call index, mapping each method or constructor to those
+     * which call it, in the same front-coded, block-indexed format as a
+     * manifest, with an empty digest and each key being callee and caller
+     * separated by a tab.
+     *
+     * @param file The file to write
+     * @param callers Callers by callee, as returned by
+     * <code>SigTree.callers()</code>
+     * @throws IOException If something goes wrong
+     */
+    public static void writeCallers(Path file, Map<String, ? extends Collection<String>> callers) throws IOException {
+        Map<String, byte[]> entries = new HashMap<>();
+        byte[] empty = new byte[0];
+        for (Map.Entry<String, ? extends Collection<String>> e : callers.entrySet()) {
+            for (String caller : e.getValue()) {
+                entries.put(e.getKey() + '\t' + caller, empty);
+            }
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out, CALLERS, false, null, entries, DEFAULT_BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * If this is a reverse-call index written by <code>writeCallers()</code>,
+     * find the callers of a method or constructor.
+     *
+     * @param key A member key such as <code>com.foo.Bar#baz(int)</code>
+     * @return The keys of its callers, in sorted order
+     */
+    public List<String> callers(String key) {
+        if (!CALLERS.equals(algorithm)) {
+            throw new IllegalStateException("Not a reverse-call index");
+        }
+        String prefix = key + '\t';
+        List<String> result = new ArrayList<>();
+        forEach(prefix, (k, empty) -> result.add(k.substring(prefix.length())));
+        return result;
+    }
+
+    static Path callersFile(Path manifest) {
+        String name = manifest.getFileName().toString();
+        if (name.endsWith(".shm")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return manifest.resolveSibling(name + ".callers.shm");
+    }
+
+    private int blockOffset(int block) {
+        return (int) buf.getLong(indexOffset + block * 8);
+    }
+
+    private byte[] digestAt(int offset) {
+        byte[] result = new byte[digestLength];
+        for (int i = 0; i < digestLength; i++) {
+            result[i] = buf.get(offset + i);
+        }
+        return result;
+    }
+
+    private int compareFirstKey(int offset, byte[] target) {
+        // The first key of a block shares nothing, so skip the zero
+        int[] pos = {offset + 1};
+        int length = readVarint(pos);
+        int max = Math.min(length, target.length);
+        for (int i = 0; i < max; i++) {
+            int cmp = Integer.compare(buf.get(pos[0] + i) & 0xFF, target[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, target.length);
+    }
+
+    private int skipKey(int offset) {
+        int[] pos = {offset};
+        readVarint(pos);
+        int length = readVarint(pos);
+        return pos[0] + length;
+    }
+
+    private int readVarint(int[] pos) {
+        int result = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = buf.get(pos[0]++);
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, byte[]>> {
+
+        private final byte[] prefix;
+        private int block;
+        private int remaining;
+        private Cursor cursor;
+        private Map.Entry<String, byte[]> next;
+
+        EntryIterator(int block, byte[] prefix) {
+            this.block = block - 1;
+            this.prefix = prefix;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (true) {
+                if (remaining == 0) {
+                    if (++block >= blockCount) {
+                        return;
+                    }
+                    cursor = new Cursor(blockOffset(block));
+                    remaining = Math.min(blockSize, size - block * blockSize);
+                }
+                cursor.next();
+                remaining--;
+                int common = Math.min(cursor.keyLength, prefix.length);
+                int cmp = Arrays.compareUnsigned(cursor.key, 0, common, prefix, 0, common);
+                if (cmp == 0 && cursor.keyLength < prefix.length) {
+                    cmp = -1;
+                }
+                if (cmp < 0) {
+                    // Before the prefix, in the first block
+                    continue;
+                } else if (cmp > 0) {
+                    // Past every key which could start with it
+                    block = blockCount;
+                    remaining = 0;
+                    return;
+                }
+                next = new SimpleImmutableEntry<>(new String(cursor.key, 0, cursor.keyLength, UTF_8),
+                        digestAt(cursor.digestOffset));
+                return;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, byte[]> result = next;
+            advance();
+            return result;
+        }
+    }
+
+    /**
+     * Decodes the entries of a block in sequence.
+     */
+    private final class Cursor {
+
+        private final int[] pos;
+        private byte[] key = new byte[128];
+        private int keyLength;
+        private int digestOffset;
+
+        Cursor(int offset) {
+            pos = new int[]{offset};
+        }
+
+        void next() {
+            int shared = readVarint(pos);
+            int suffix = readVarint(pos);
+            keyLength = shared + suffix;
+            if (keyLength > key.length) {
+                key = Arrays.copyOf(key, Math.max(keyLength, key.length * 2));
+            }
+            for (int i = 0; i < suffix; i++) {
+                key[shared + i] = buf.get(pos[0] + i);
+            }
+            digestOffset = pos[0] + suffix;
+            pos[0] = digestOffset + digestLength;
+        }
+    }
+}
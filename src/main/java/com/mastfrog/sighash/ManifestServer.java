@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Answers queries over a directory of stored manifests, one per version,
+ * named <code>version.shm</code>, each optionally with a reverse-call index
+ * named <code>version.callers.shm</code> as written alongside it by
+ * <code>--manifest</code>. Responses are JSON:
+ * <ul>
+ * <li><code>GET /versions</code> - the available versions</li>
+ * <li><code>GET /hash/A</code> - the hash of version A, as printed by the
+ * command line which wrote its manifest</li>
+ * <li><code>GET /member/A?key=com.foo.Bar%23baz(int)</code> - the digest
+ * of one class or member</li>
+ * <li><code>GET /diff/A/B?prefix=com.foo.</code> - keys added, removed and
+ * changed between two versions, optionally only those with a prefix</li>
+ * <li><code>GET /callers/A?key=...&amp;transitive=true</code> - the callers
+ * of a method or constructor, optionally transitively</li>
+ * </ul>
+ * Manifests are memory-mapped on first use and kept open, up to a limit,
+ * least recently used first out; a manifest whose file changes is reopened.
+ *
+ * @author Tim Boudreau
+ */
+final class ManifestServer {
+
+    private static final int MAX_OPEN = 64;
+    private static final String SUFFIX = ".shm";
+    private static final String CALLERS_SUFFIX = ".callers.shm";
+    private final Path dir;
+    private final HttpServer server;
+    private final Map<String, Version> open = new LinkedHashMap<>(16, 0.75F, true);
+
+    ManifestServer(Path dir, InetSocketAddress address, Executor executor) throws IOException {
+        this.dir = dir.toAbsolutePath().normalize();
+        if (!Files.isDirectory(this.dir)) {
+            throw new NoSuchFileException(dir.toString());
+        }
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    ManifestServer start() {
+        server.start();
+        return this;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        Object body;
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                status = 405;
+                body = error("Only GET is supported");
+            } else {
+                body = respond(exchange.getRequestURI().getRawPath(),
+                        query(exchange.getRequestURI().getRawQuery()));
+                if (body == null) {
+                    status = 404;
+                    body = error("Not found");
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            status = 400;
+            body = error(ex.getMessage());
+        } catch (NoSuchFileException ex) {
+            status = 404;
+            body = error("No such version");
+        } catch (Exception ex) {
+            status = 500;
+            body = error(String.valueOf(ex));
+        }
+        byte[] bytes = (Json.toString(body) + "\n").getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Object respond(String rawPath, Map<String, String> query) throws IOException {
+        List<String> parts = new ArrayList<>();
+        for (String part : rawPath.split("/")) {
+            if (!part.isEmpty()) {
+                parts.add(URLDecoder.decode(part, UTF_8));
+            }
+        }
+        if (parts.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        switch (parts.get(0) + "/" + (parts.size() - 1)) {
+            case "versions/0":
+                result.put("versions", versions());
+                return result;
+            case "hash/1": {
+                Version version = version(parts.get(1));
+                if (version.manifest.hash() == null) {
+                    return null;
+                }
+                result.put("version", parts.get(1));
+                result.put("algorithm", version.manifest.algorithm());
+                result.put("deep", version.manifest.isDeep());
+                result.put("hash", version.manifest.hash());
+                return result;
+            }
+            case "member/1": {
+                String key = required(query, "key");
+                byte[] digest = version(parts.get(1)).manifest.get(key);
+                if (digest == null) {
+                    return null;
+                }
+                result.put("version", parts.get(1));
+                result.put("key", key);
+                result.put("digest", Base64.getUrlEncoder().encodeToString(digest));
+                return result;
+            }
+            case "diff/2":
+                return diff(parts.get(1), parts.get(2), query.getOrDefault("prefix", ""));
+            case "callers/1":
+                return callers(parts.get(1), required(query, "key"), "true".equals(query.get("transitive")));
+            default:
+                return null;
+        }
+    }
+
+    private Map<String, Object> diff(String from, String to, String prefix) throws IOException {
+        Manifest a = version(from).manifest;
+        Manifest b = version(to).manifest;
+        if (!a.algorithm().equals(b.algorithm()) || a.isDeep() != b.isDeep()) {
+            throw new IllegalArgumentException("Versions were hashed differently: "
+                    + a.algorithm() + (a.isDeep() ? " deep" : " shallow") + " and "
+                    + b.algorithm() + (b.isDeep() ? " deep" : " shallow"));
+        }
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<String> changed = new ArrayList<>();
+        // Both are in key order, so one pass over each suffices
+        Iterator<Map.Entry<String, byte[]>> ai = a.iterator(prefix);
+        Iterator<Map.Entry<String, byte[]>> bi = b.iterator(prefix);
+        Map.Entry<String, byte[]> ae = ai.hasNext() ? ai.next() : null;
+        Map.Entry<String, byte[]> be = bi.hasNext() ? bi.next() : null;
+        while (ae != null || be != null) {
+            int cmp = ae == null ? 1 : be == null ? -1
+                    : Arrays.compareUnsigned(ae.getKey().getBytes(UTF_8), be.getKey().getBytes(UTF_8));
+            if (cmp < 0) {
+                removed.add(ae.getKey());
+                ae = ai.hasNext() ? ai.next() : null;
+            } else if (cmp > 0) {
+                added.add(be.getKey());
+                be = bi.hasNext() ? bi.next() : null;
+            } else {
+                if (!Arrays.equals(ae.getValue(), be.getValue())) {
+                    changed.add(ae.getKey());
+                }
+                ae = ai.hasNext() ? ai.next() : null;
+                be = bi.hasNext() ? bi.next() : null;
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("from", from);
+        result.put("to", to);
+        result.put("prefix", prefix);
+        result.put("same", added.isEmpty() && removed.isEmpty() && changed.isEmpty());
+        result.put("added", added);
+        result.put("removed", removed);
+        result.put("changed", changed);
+        return result;
+    }
+
+    private Map<String, Object> callers(String version, String key, boolean transitive) throws IOException {
+        Manifest index = version(version).callers;
+        if (index == null) {
+            throw new IllegalArgumentException("No reverse-call index for " + version);
+        }
+        Set<String> result = new LinkedHashSet<>(index.callers(key));
+        if (transitive) {
+            Deque<String> queue = new ArrayDeque<>(result);
+            while (!queue.isEmpty()) {
+                for (String caller : index.callers(queue.pop())) {
+                    if (result.add(caller)) {
+                        queue.add(caller);
+                    }
+                }
+            }
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("version", version);
+        response.put("key", key);
+        response.put("callers", new ArrayList<>(new TreeSet<>(result)));
+        return response;
+    }
+
+    private List<String> versions() throws IOException {
+        List<String> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(CALLERS_SUFFIX)) {
+                    result.add(name.substring(0, name.length() - SUFFIX.length()));
+                }
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    private Version version(String name) throws IOException {
+        if (name.isEmpty() || name.startsWith(".") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0
+                || name.endsWith(".callers")) {
+            throw new IllegalArgumentException("Bad version " + name);
+        }
+        Path file = dir.resolve(name + SUFFIX);
+        FileTime modified = Files.getLastModifiedTime(file);
+        synchronized (open) {
+            Version result = open.get(name);
+            if (result != null && result.modified.equals(modified)) {
+                return result;
+            }
+        }
+        // Map outside the lock; two threads may both do so, harmlessly
+        Path callersFile = dir.resolve(name + CALLERS_SUFFIX);
+        Version result = new Version(Manifest.open(file),
+                Files.exists(callersFile) ? Manifest.open(callersFile) : null, modified);
+        synchronized (open) {
+            open.put(name, result);
+            if (open.size() > MAX_OPEN) {
+                // Dropping the reference lets the mapping be collected
+                Iterator<String> eldest = open.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return result;
+    }
+
+    private static String required(Map<String, String> query, String name) {
+        String result = query.get(name);
+        if (result == null || result.isEmpty()) {
+            throw new IllegalArgumentException("Missing ?" + name + "=");
+        }
+        return result;
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> result = new HashMap<>();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int ix = pair.indexOf('=');
+                if (ix > 0) {
+                    result.put(URLDecoder.decode(pair.substring(0, ix), UTF_8),
+                            URLDecoder.decode(pair.substring(ix + 1), UTF_8));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("error", message);
+        return result;
+    }
+
+    private static final class Version {
+
+        private final Manifest manifest;
+        private final Manifest callers;
+        private final FileTime modified;
+
+        Version(Manifest manifest, Manifest callers, FileTime modified) {
+            this.manifest = manifest;
+            this.callers = callers;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * File manager which never writes to disk: any output javac asks for is
+ * discarded (we only ever analyze), and in-memory sources are listed on the
+ * source path alongside whatever the delegate finds there, so they can be
+ * resolved lazily like any other source file.
+ *
+ * @author Tim Boudreau
+ */
+final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+    private final Map<String, List<MemorySource>> sourcesByPackage = new TreeMap<>();
+    private final boolean ownsDelegate;
+
+    MemoryFileManager(StandardJavaFileManager delegate, Collection<? extends MemorySource> sources) {
+        this(delegate, sources, true);
+    }
+
+    MemoryFileManager(StandardJavaFileManager delegate, Collection<? extends MemorySource> sources, boolean ownsDelegate) {
+        super(delegate);
+        this.ownsDelegate = ownsDelegate;
+        for (MemorySource src : sources) {
+            sourcesByPackage.computeIfAbsent(src.packageName(), p -> new ArrayList<>()).add(src);
+        }
+    }
+
+    StandardJavaFileManager standard() {
+        return fileManager;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // A delegate we do not own is reused for other compilations
+        if (ownsDelegate) {
+            super.close();
+        } else {
+            flush();
+        }
+    }
+
+    @Override
+    public boolean hasLocation(Location location) {
+        if (location == StandardLocation.SOURCE_PATH && !sourcesByPackage.isEmpty()) {
+            return true;
+        }
+        return super.hasLocation(location);
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName,
+            Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+        Iterable<JavaFileObject> result = super.list(location, packageName, kinds, recurse);
+        if (location != StandardLocation.SOURCE_PATH || !kinds.contains(JavaFileObject.Kind.SOURCE)
+                || sourcesByPackage.isEmpty()) {
+            return result;
+        }
+        List<JavaFileObject> all = new ArrayList<>();
+        result.forEach(all::add);
+        all.addAll(sourcesByPackage.getOrDefault(packageName, Collections.emptyList()));
+        if (recurse) {
+            String prefix = packageName.isEmpty() ? "" : packageName + '.';
+            for (Map.Entry<String, List<MemorySource>> e : sourcesByPackage.entrySet()) {
+                if (!e.getKey().equals(packageName) && e.getKey().startsWith(prefix)) {
+                    all.addAll(e.getValue());
+                }
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof MemorySource) {
+            return ((MemorySource) file).binaryName();
+        }
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof MemorySource || b instanceof MemorySource) {
+            return a.equals(b);
+        }
+        return super.isSameFile(a, b);
+    }
+
+    @Override
+    public boolean contains(Location location, FileObject fo) throws IOException {
+        if (fo instanceof MemorySource) {
+            return location == StandardLocation.SOURCE_PATH;
+        }
+        return super.contains(location, fo);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className,
+            JavaFileObject.Kind kind, FileObject sibling) {
+        return new DiscardedOutput(URI.create("mem:///" + className.replace('.', '/')
+                + kind.extension), kind);
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName,
+            String relativeName, FileObject sibling) {
+        String pkg = packageName.isEmpty() ? "" : packageName.replace('.', '/') + '/';
+        return new DiscardedOutput(URI.create("mem:///" + pkg + relativeName),
+                JavaFileObject.Kind.OTHER);
+    }
+
+    private static final class DiscardedOutput extends SimpleJavaFileObject {
+
+        DiscardedOutput(URI uri, Kind kind) {
+            super(uri, kind);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public Writer openWriter() {
+            return Writer.nullWriter();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * A Java source file whose content is held in memory, for hashing sources
+ * which were never written to disk (or whose on-disk copy is stale, as in
+ * an editor). The path is relative to a source root, using <code>/</code> as
+ * the separator, e.g. <code>com/foo/Bar.java</code>.
+ *
+ * @author Tim Boudreau
+ */
+public final class MemorySource extends SimpleJavaFileObject {
+
+    private final String path;
+    private final CharSequence content;
+    private final ByteBuffer bytes;
+    private volatile String decoded;
+
+    public MemorySource(String path, CharSequence content) {
+        super(toUri(path), Kind.SOURCE);
+        if (content == null) {
+            throw new IllegalArgumentException("Null content for " + path);
+        }
+        this.path = normalize(path);
+        this.content = content;
+        this.bytes = null;
+    }
+
+    /**
+     * Create a source from UTF-8 encoded bytes; the buffer's content between
+     * its position and limit is decoded on first use, and the buffer itself
+     * is not modified.
+     *
+     * @param path The relative path
+     * @param utf8 The bytes
+     */
+    public MemorySource(String path, ByteBuffer utf8) {
+        super(toUri(path), Kind.SOURCE);
+        if (utf8 == null) {
+            throw new IllegalArgumentException("Null content for " + path);
+        }
+        this.path = normalize(path);
+        this.content = null;
+        this.bytes = utf8.asReadOnlyBuffer();
+    }
+
+    private static String normalize(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("Null path");
+        }
+        String result = path.replace('\\', '/');
+        while (result.startsWith("/")) {
+            result = result.substring(1);
+        }
+        if (!result.endsWith(Kind.SOURCE.extension) || result.length() == Kind.SOURCE.extension.length()) {
+            throw new IllegalArgumentException("Not a java source path: " + path);
+        }
+        return result;
+    }
+
+    private static URI toUri(String path) {
+        try {
+            return new URI("mem", null, "/" + normalize(path), null);
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException("Bad path " + path, ex);
+        }
+    }
+
+    /**
+     * The path relative to the source root.
+     *
+     * @return The path
+     */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * The package the file is in by virtue of its path.
+     *
+     * @return A package name, or the empty string for the default package
+     */
+    public String packageName() {
+        int ix = path.lastIndexOf('/');
+        return ix < 0 ? "" : path.substring(0, ix).replace('/', '.');
+    }
+
+    String binaryName() {
+        return path.substring(0, path.length() - Kind.SOURCE.extension.length()).replace('/', '.');
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        if (content != null) {
+            return content;
+        }
+        String result = decoded;
+        if (result == null) {
+            decoded = result = UTF_8.decode(bytes.duplicate()).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public InputStream openInputStream() {
+        if (bytes != null) {
+            ByteBuffer buf = bytes.duplicate();
+            byte[] b = new byte[buf.remaining()];
+            buf.get(b);
+            return new ByteArrayInputStream(b);
+        }
+        return new ByteArrayInputStream(content.toString().getBytes(UTF_8));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || (o instanceof MemorySource && ((MemorySource) o).path.equals(path));
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+}
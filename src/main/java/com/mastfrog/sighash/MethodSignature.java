@@ -23,6 +23,9 @@
  */
 package com.mastfrog.sighash;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -63,23 +66,28 @@ public final class MethodSignature implements Signature, Comparable<MethodSignat
     static final byte[] DELIM_4 = bytes(0xF9, 0xB9, 0xF1);
 
     private List<Signature> drilldown;
+    // URIs of the compilation units the drilldown read
+    private Set<String> dependencies;
+    // Keys of methods and constructors with source its body invokes directly
+    private Set<String> calls;
+    private boolean frozen;
 
-    MethodSignature(ExecutableElement el) {
+    MethodSignature(ExecutableElement el, TypeRenderer types) {
         this.name = el.getSimpleName().toString();
-        this.returnType = el.getReturnType().toString();
+        this.returnType = types.render(el.getReturnType());
         modifiers = el.getModifiers();
         List<? extends VariableElement> params = el.getParameters();
         if (!params.isEmpty()) {
-            parameterTypes = new ArrayList<>();
-            for (VariableElement p : el.getParameters()) {
-                parameterTypes.add(typeToString(p.asType()));
+            parameterTypes = new ArrayList<>(params.size());
+            for (VariableElement p : params) {
+                parameterTypes.add(types.render(p.asType()));
             }
         }
         List<? extends TypeMirror> thrown = el.getThrownTypes();
         if (!thrown.isEmpty()) {
             thrownTypes = new TreeSet<>();
             for (TypeMirror tm : thrown) {
-                thrownTypes.add(typeToString(tm));
+                thrownTypes.add(types.render(tm));
             }
         }
         List<? extends TypeParameterElement> typeParams = el.getTypeParameters();
@@ -92,7 +100,7 @@ public final class MethodSignature implements Signature, Comparable<MethodSignat
                     }
                     StringBuilder sb = new StringBuilder(64).append(':');
                     for (TypeMirror bound : bounds) {
-                        sb.append(typeToString(bound));
+                        sb.append(types.render(bound));
                     }
                     typeParamBounds.add(sb.toString());
                 }
@@ -100,6 +108,131 @@ public final class MethodSignature implements Signature, Comparable<MethodSignat
         }
     }
 
+    private MethodSignature(String name, String returnType, Set<Modifier> modifiers) {
+        this.name = name;
+        this.returnType = returnType;
+        this.modifiers = modifiers;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeUTF(returnType);
+        SigTreeIO.writeModifiers(modifiers, out);
+        SigTreeIO.writeStrings(parameterTypes, out);
+        SigTreeIO.writeStrings(thrownTypes, out);
+        SigTreeIO.writeStrings(typeParamBounds, out);
+        if (drilldown == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(drilldown.size());
+            for (Signature dd : drilldown) {
+                out.writeUTF(((SigTree.CodeSig) dd).code().toString());
+            }
+        }
+        SigTreeIO.writeStrings(dependencies, out);
+        SigTreeIO.writeStrings(calls, out);
+    }
+
+    static MethodSignature read(DataInput in) throws IOException {
+        MethodSignature result = new MethodSignature(in.readUTF(), in.readUTF(), SigTreeIO.readModifiers(in));
+        result.parameterTypes = SigTreeIO.readStrings(in);
+        result.thrownTypes = SigTreeIO.readStrings(in, new TreeSet<>());
+        result.typeParamBounds = SigTreeIO.readStrings(in);
+        int drilldowns = in.readInt();
+        if (drilldowns >= 0) {
+            result.drilldown = new ArrayList<>(drilldowns);
+            for (int i = 0; i < drilldowns; i++) {
+                result.drilldown.add(new SigTree.CodeSig(in.readUTF()));
+            }
+        }
+        result.dependencies = SigTreeIO.readUris(in);
+        result.calls = SigTreeIO.readStrings(in, new TreeSet<>());
+        if (result.calls != null && result.calls.isEmpty()) {
+            result.calls = null;
+        }
+        return result;
+    }
+
+    void dependencies(Set<String> dependencies) {
+        if (frozen) {
+            throw new IllegalStateException("Frozen: " + name);
+        }
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Get the URIs of the compilation units whose code was incorporated into
+     * this method's deep hash - its own, and those of every callee its
+     * closure reached - so a cached deep hash can be discarded exactly when
+     * one of them changes.
+     *
+     * @return A set of URIs, empty for methods with no body
+     */
+    public Set<String> dependencies() {
+        return dependencies == null ? Collections.emptySet() : dependencies;
+    }
+
+    void calls(Set<String> calls) {
+        if (frozen) {
+            throw new IllegalStateException("Frozen: " + name);
+        }
+        this.calls = calls;
+    }
+
+    /**
+     * Get the methods and constructors this method's body invokes directly,
+     * where their source was available, as
+     * <code>com.foo.Bar#baz(int)</code>.
+     *
+     * @return A set of member keys
+     */
+    public Set<String> calls() {
+        return calls == null ? Collections.emptySet() : calls;
+    }
+
+    /**
+     * Estimate the bytes of heap this signature retains, including its deep
+     * drilldown. The source file URIs in its dependencies are shared with
+     * other methods, so only the set is counted.
+     *
+     * @return An estimate
+     */
+    long estimatedBytes() {
+        long result = Footprint.OBJECT + 9 * Footprint.REFERENCE + Footprint.ENUM_SET + Footprint.string(name)
+                + Footprint.string(returnType) + Footprint.list(parameterTypes) + Footprint.set(thrownTypes)
+                + Footprint.list(typeParamBounds) + Footprint.sharedSet(dependencies) + Footprint.set(calls);
+        if (drilldown != null) {
+            result += 24 + Footprint.align(16 + Footprint.REFERENCE * drilldown.size());
+            for (Signature dd : drilldown) {
+                result += ((SigTree.CodeSig) dd).estimatedBytes();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A key identifying this method within its class, as name and
+     * parameter types, e.g. <code>foo(java.lang.String,int)</code>.
+     *
+     * @return A key
+     */
+    public String key() {
+        return key(name, parameterTypes);
+    }
+
+    static String key(CharSequence name, List<String> parameterTypes) {
+        StringBuilder sb = new StringBuilder(name).append('(');
+        if (parameterTypes != null) {
+            for (Iterator<String> it = parameterTypes.iterator(); it.hasNext();) {
+                sb.append(it.next());
+                if (it.hasNext()) {
+                    sb.append(',');
+                }
+            }
+        }
+        return sb.append(')').toString();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -142,12 +275,40 @@ public final class MethodSignature implements Signature, Comparable<MethodSignat
     }
 
     void enter(Consumer<Consumer<Signature>> c) {
+        if (frozen) {
+            throw new IllegalStateException("Frozen: " + name);
+        }
         if (drilldown == null) {
             drilldown = new ArrayList<>();
         }
         c.accept(drilldown::add);
     }
 
+    void freeze() {
+        if (frozen) {
+            return;
+        }
+        if (parameterTypes != null) {
+            parameterTypes = Collections.unmodifiableList(parameterTypes);
+        }
+        if (thrownTypes != null) {
+            thrownTypes = Collections.unmodifiableSet(thrownTypes);
+        }
+        if (typeParamBounds != null) {
+            typeParamBounds = Collections.unmodifiableList(typeParamBounds);
+        }
+        if (drilldown != null) {
+            drilldown = Collections.unmodifiableList(drilldown);
+        }
+        if (dependencies != null) {
+            dependencies = Collections.unmodifiableSet(dependencies);
+        }
+        if (calls != null) {
+            calls = Collections.unmodifiableSet(calls);
+        }
+        frozen = true;
+    }
+
     static <T extends Comparable<T>> void sort(List<T> list) {
         if (list != null) {
             Collections.sort(list);
@@ -284,11 +445,6 @@ public final class MethodSignature implements Signature, Comparable<MethodSignat
         digest.accept(CLOSE_METHOD);
     }
 
-    static String typeToString(TypeMirror mir) {
-        // XXX drill through with a type visitor to omit spurious differences?
-        return mir.toString();
-    }
-
     @Override
     public int hashCode() {
         int hash = 3;
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A hasher which feeds several digests in a single pass, encoding each
+ * element to bytes only once, so that, for example, SHA-256, SHA-512 and
+ * XXH64 hashes of a tree can be computed with one traversal.
+ *
+ * @author Tim Boudreau
+ */
+public final class MultiHasher implements Consumer<Object> {
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private Map<String, byte[]> results;
+
+    public MultiHasher(String... algorithms) throws NoSuchAlgorithmException {
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("No algorithms");
+        }
+        for (String alg : algorithms) {
+            if (!digests.containsKey(alg)) {
+                digests.put(alg, DigestFactory.create(alg));
+            }
+        }
+    }
+
+    @Override
+    public void accept(Object t) {
+        assert results == null;
+        byte[] bytes = Hasher.encode(t);
+        for (MessageDigest digest : digests.values()) {
+            digest.update(bytes);
+        }
+    }
+
+    /**
+     * Finish all digests.
+     *
+     * @return A map of algorithm to digest, in the order the algorithms were
+     * passed to the constructor
+     */
+    public Map<String, byte[]> done() {
+        if (results == null) {
+            Map<String, byte[]> res = new LinkedHashMap<>();
+            for (Map.Entry<String, MessageDigest> e : digests.entrySet()) {
+                res.put(e.getKey(), e.getValue().digest());
+            }
+            results = Collections.unmodifiableMap(res);
+        }
+        return results;
+    }
+
+    /**
+     * Finish all digests, returning them as URL-safe base-64 strings.
+     *
+     * @return A map of algorithm to hash, in the order the algorithms were
+     * passed to the constructor
+     */
+    public Map<String, String> hashes() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> e : done().entrySet()) {
+            result.put(e.getKey(), Base64.getUrlEncoder().encodeToString(e.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return hashes().toString();
+    }
+}
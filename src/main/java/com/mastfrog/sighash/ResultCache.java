@@ -0,0 +1,313 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A directory of saved trees keyed by a digest of everything that determines
+ * their content - the sources, the classpath, the JDK and the settings which
+ * affect hashing - so that hashing the same inputs twice, on this machine or
+ * another sharing the directory over a network mount, runs javac only once.
+ * <p>
+ * Sources and classpath entries are fingerprinted by content and relative
+ * path, not location, so identical checkouts in different places share
+ * entries. Entries are written to a temporary file and renamed into place, so
+ * a reader never sees a partial one; the last-modified time of an entry is
+ * updated on each hit, and once the directory exceeds its size limit, the
+ * least recently used entries are deleted. Deep and shallow hashes both come
+ * from the same entry. A tree loaded from the cache records the source file
+ * locations of whoever created it, so it is not suitable for
+ * <code>SigTree.update()</code> on another machine.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class ResultCache {
+
+    private static final String SUFFIX = ".sig";
+    private static final String TEMP_PREFIX = ".tmp-";
+    // Temp files older than this were abandoned by a crashed writer
+    private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private final Path dir;
+    private final long maxBytes;
+
+    /**
+     * Create a cache.
+     *
+     * @param dir The directory, which is created if it does not exist
+     * @param maxBytes The size beyond which the least recently used entries
+     * are evicted
+     * @throws IOException If the directory cannot be created
+     */
+    public ResultCache(Path dir, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Bad size " + maxBytes);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Compute the key for a set of inputs, reading every source and classpath
+     * entry.
+     *
+     * @param classpath The classpath, or null
+     * @param config The configuration
+     * @param roots The source roots, directories or archives
+     * @return A key
+     * @throws IOException If something cannot be read
+     */
+    public String key(String classpath, SigTreeConfig config, Path... roots) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, "v" + SigTreeIO.MAGIC);
+        update(digest, System.getProperty("java.specification.version"));
+        update(digest, String.valueOf(config.compactTokens()));
+        ClosureBudget budget = config.closureBudget();
+        update(digest, budget.maxDepth() + ":" + budget.maxNodes() + ":" + budget.maxCallees());
+        for (Path root : roots) {
+            update(digest, "root");
+            fingerprint(digest, root, SignatureHashGenerator.isArchive(root) ? null : ".java");
+        }
+        if (classpath != null) {
+            for (String entry : classpath.split(File.pathSeparator)) {
+                if (!entry.isEmpty()) {
+                    update(digest, "cp");
+                    fingerprint(digest, Paths.get(entry), null);
+                }
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    /**
+     * Get a cached tree, marking it as recently used. An entry which cannot
+     * be loaded, such as one truncated by a full disk, is deleted and
+     * treated as a miss.
+     *
+     * @param key A key
+     * @return A tree, or null if there is none
+     */
+    public SigTree get(String key) {
+        Path file = file(key);
+        SigTree result;
+        try {
+            result = SigTree.load(file);
+        } catch (NoSuchFileException ex) {
+            // Absent, or evicted by another process
+            return null;
+        } catch (Exception ex) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex1) {
+                // Read-only; it will be replaced if we can write at all
+            }
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            // A read-only mount, or evicted since; the hit is still good
+        }
+        return result;
+    }
+
+    /**
+     * Store a tree, replacing any existing entry, and evict old entries if
+     * the cache is now over its size limit.
+     *
+     * @param key A key
+     * @param tree A tree
+     * @throws IOException If something goes wrong
+     */
+    public void put(String key, SigTree tree) throws IOException {
+        Path file = file(key);
+        Files.createDirectories(file.getParent());
+        // Not Files.createTempFile(), which would make the file readable only
+        // by this user
+        Path temp = file.getParent().resolve(TEMP_PREFIX + ProcessHandle.current().pid() + "-"
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + SUFFIX);
+        try {
+            tree.save(temp);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    /**
+     * Get the cached tree for a set of inputs, or create and cache it; on a
+     * hit, javac is not run at all. If the configuration requests a hotspot
+     * report or a trace, neither of which is cached, the tree is always
+     * created.
+     *
+     * @param classpath The classpath, or null
+     * @param config The configuration
+     * @param roots The source roots
+     * @return A tree
+     * @throws Exception If something goes wrong
+     */
+    public SigTree getOrCreate(String classpath, SigTreeConfig config, Path... roots) throws Exception {
+        String key = key(classpath, config, roots);
+        SigTree result = config.hotspots() || config.trace() != null ? null : get(key);
+        if (result == null) {
+            result = SigTree.create(classpath, config, roots);
+            put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is within its
+     * size limit, along with any abandoned temporary files.
+     *
+     * @throws IOException If the directory cannot be listed
+     */
+    public void evict() throws IOException {
+        List<Map.Entry<Path, BasicFileAttributes>> entries = new ArrayList<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                BasicFileAttributes attr;
+                try {
+                    attr = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException ex) {
+                    continue;
+                }
+                if (!attr.isRegularFile()) {
+                    continue;
+                }
+                if (name.startsWith(TEMP_PREFIX)) {
+                    if (now - attr.lastModifiedTime().toMillis() > STALE_TEMP_MILLIS) {
+                        Files.deleteIfExists(file);
+                    }
+                } else if (name.endsWith(SUFFIX)) {
+                    entries.add(new SimpleImmutableEntry<>(file, attr));
+                    total += attr.size();
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            // Another process deleted a directory while it was being listed;
+            // the next eviction will catch up
+            return;
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        entries.sort((a, b) -> a.getValue().lastModifiedTime().compareTo(b.getValue().lastModifiedTime()));
+        for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+            Files.deleteIfExists(entries.get(i).getKey());
+            total -= entries.get(i).getValue().size();
+        }
+    }
+
+    private Path file(String key) {
+        if (key.length() < 3 || key.indexOf('/') >= 0 || key.indexOf('.') >= 0) {
+            throw new IllegalArgumentException("Bad key " + key);
+        }
+        // Two-character subdirectories keep any one directory small
+        return dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    private static void fingerprint(MessageDigest digest, Path path, String suffix) throws IOException {
+        if (!Files.exists(path)) {
+            update(digest, "missing " + path.getFileName());
+        } else if (Files.isDirectory(path)) {
+            // Sorted by relative path so the order is the same everywhere
+            SortedMap<String, Path> files = new TreeMap<>();
+            try (Stream<Path> all = Files.walk(path)) {
+                all.filter(f -> Files.isRegularFile(f)
+                        && (suffix == null || f.getFileName().toString().endsWith(suffix)))
+                        .forEach(f -> files.put(path.relativize(f).toString().replace(File.separatorChar, '/'), f));
+            }
+            for (Map.Entry<String, Path> e : files.entrySet()) {
+                update(digest, e.getKey());
+                contents(digest, e.getValue());
+            }
+        } else {
+            contents(digest, path);
+        }
+    }
+
+    private static void contents(MessageDigest digest, Path file) throws IOException {
+        byte[] buf = new byte[65536];
+        long length = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int count = in.read(buf); count > 0; count = in.read(buf)) {
+                digest.update(buf, 0, count);
+                length += count;
+            }
+        }
+        update(digest, Long.toString(length));
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        byte[] bytes = s.getBytes(UTF_8);
+        digest.update(bytes);
+        // Length-terminated, so adjacent strings cannot run together
+        digest.update((byte) 0);
+        digest.update(Integer.toString(bytes.length).getBytes(UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return DigestFactory.create("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JDK is required to support SHA-256
+            throw new AssertionError(ex);
+        }
+    }
+}
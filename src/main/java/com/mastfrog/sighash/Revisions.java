@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Hashes successive versions of the same sources - separate directories, or
+ * git revisions checked out into temporary worktrees - with one compiler and
+ * file manager, so javac's startup and its index of the classpath's archives
+ * are paid for once, recording each version's hashes and, for every class and
+ * member, the versions at which it was added, changed or removed.
+ *
+ * @author Tim Boudreau
+ */
+final class Revisions implements AutoCloseable {
+
+    private final String classpath;
+    private final SigTreeConfig config;
+    private final boolean deep;
+    private final List<String> algorithms;
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManager fileManager;
+    private final Map<String, Map<String, String>> hashes = new LinkedHashMap<>();
+    private final SortedMap<String, List<String>> changePoints = new TreeMap<>();
+    // Only the previous version's digests are kept, so memory use does not
+    // grow with the number of versions
+    private SortedMap<String, byte[]> previous;
+
+    Revisions(String classpath, SigTreeConfig config, boolean deep, List<String> algorithms) {
+        this.classpath = classpath;
+        this.config = config;
+        this.deep = deep;
+        this.algorithms = algorithms.isEmpty() ? Collections.singletonList("SHA-512")
+                : new ArrayList<>(algorithms);
+        compiler = ToolProvider.getSystemJavaCompiler();
+        fileManager = compiler.getStandardFileManager(null, Locale.getDefault(), UTF_8);
+    }
+
+    /**
+     * Hash one version of the sources; versions should be added oldest first.
+     *
+     * @param label The name of this version
+     * @param roots Its source roots
+     * @return this
+     * @throws Exception If something goes wrong
+     */
+    Revisions hash(String label, Path... roots) throws Exception {
+        if (hashes.containsKey(label)) {
+            throw new IllegalArgumentException("Duplicate revision " + label);
+        }
+        SigTree tree = SigTree.create(new SignatureHashGenerator(classpath, roots)
+                .reuse(compiler, fileManager), config);
+        hashes.put(label, tree.hashes(deep, algorithms.toArray(new String[0])));
+        record(label, tree.memberDigests(algorithms.get(0), deep));
+        return this;
+    }
+
+    /**
+     * Hash the sources in the same directories as of a git revision, which is
+     * checked out into a temporary worktree that is deleted afterwards.
+     *
+     * @param revision A revision
+     * @param roots Source roots within the current working tree of a git
+     * repository
+     * @return this
+     * @throws Exception If something goes wrong
+     */
+    Revisions hashGitRevision(String revision, Path... roots) throws Exception {
+        Path top = Git.topLevel(roots[0].toAbsolutePath());
+        Path worktree = Files.createTempDirectory("sighash-");
+        try {
+            Git.addWorktree(top, revision, worktree);
+        } catch (Exception ex) {
+            // Nothing was checked out, so there is no worktree to remove
+            try {
+                Files.deleteIfExists(worktree);
+            } catch (IOException ex2) {
+                ex.addSuppressed(ex2);
+            }
+            throw ex;
+        }
+        Throwable failure = null;
+        try {
+            Path[] moved = new Path[roots.length];
+            for (int i = 0; i < roots.length; i++) {
+                moved[i] = worktree.resolve(top.relativize(roots[i].toAbsolutePath().normalize()));
+            }
+            return hash(revision, moved);
+        } catch (Exception | Error ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            try {
+                Git.removeWorktree(top, worktree);
+                Files.deleteIfExists(worktree);
+            } catch (Exception ex) {
+                // Do not hide why hashing failed
+                if (failure == null) {
+                    throw ex;
+                }
+                failure.addSuppressed(ex);
+            }
+        }
+    }
+
+    /**
+     * Split an argument naming the source roots of one version, separated by
+     * commas.
+     *
+     * @param version The argument
+     * @return The roots
+     */
+    static Path[] roots(String version) {
+        List<Path> result = new ArrayList<>();
+        for (String root : version.split(",")) {
+            if (!root.trim().isEmpty()) {
+                result.add(Paths.get(root.trim()));
+            }
+        }
+        return result.toArray(new Path[0]);
+    }
+
+    private void record(String label, SortedMap<String, byte[]> digests) {
+        if (previous != null) {
+            TreeSet<String> keys = new TreeSet<>(previous.keySet());
+            keys.addAll(digests.keySet());
+            for (String key : keys) {
+                byte[] was = previous.get(key);
+                byte[] is = digests.get(key);
+                String change = was == null ? "+" : is == null ? "-"
+                        : Arrays.equals(was, is) ? null : "*";
+                if (change != null) {
+                    changePoints.computeIfAbsent(key, k -> new ArrayList<>(3)).add(change + label);
+                }
+            }
+        }
+        previous = digests;
+    }
+
+    /**
+     * Get the hashes of each version, by algorithm, in the order added.
+     *
+     * @return A map
+     */
+    Map<String, Map<String, String>> hashes() {
+        return Collections.unmodifiableMap(hashes);
+    }
+
+    /**
+     * Get the versions at which each class or member which ever changed was
+     * added (prefixed with <code>+</code>), removed (<code>-</code>) or
+     * changed (<code>*</code>), keyed as in
+     * <code>SigTree.memberDigests()</code>.
+     *
+     * @return A sorted map
+     */
+    SortedMap<String, List<String>> changePoints() {
+        return Collections.unmodifiableSortedMap(changePoints);
+    }
+
+    void print(PrintStream out) {
+        out.println("revision " + String.join(" ", algorithms));
+        for (Map.Entry<String, Map<String, String>> e : hashes.entrySet()) {
+            out.println(e.getKey() + " " + String.join(" ", e.getValue().values()));
+        }
+        for (Map.Entry<String, List<String>> e : changePoints.entrySet()) {
+            out.println("change " + e.getKey() + " " + String.join(" ", e.getValue()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileManager.close();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.Arrays;
+
+/**
+ * A temporary file holding the encoded closures of callees which are too
+ * large to keep in memory while the method that calls them is drilled
+ * through; the closure is spliced into each caller by reading it back, so the
+ * bytes hashed are the same as if it had been held in memory. One is used
+ * per drilldown, and the file is only created if something is written to it.
+ *
+ * @author Tim Boudreau
+ */
+final class Scratch implements AutoCloseable {
+
+    /**
+     * Size past which a fragment being built writes its buffer out rather
+     * than growing it.
+     */
+    static final int FRAGMENT_LIMIT = 64 * 1024;
+    /**
+     * Total size of completed fragments a single drilldown keeps in memory;
+     * once reached, further fragments are written out.
+     */
+    static final long CACHE_LIMIT = 8 * 1024 * 1024;
+    private FileChannel channel;
+    private long end;
+
+    /**
+     * Write bytes to the file, appending them to a spilled fragment.
+     *
+     * @param into A fragment being built, or null to start one
+     * @param bytes The bytes
+     * @param length The number of bytes to write
+     * @return The fragment
+     */
+    Spilled append(Spilled into, byte[] bytes, int length) {
+        if (into == null) {
+            into = new Spilled(this);
+        }
+        if (length == 0) {
+            return into;
+        }
+        try {
+            if (channel == null) {
+                Path file = Files.createTempFile("sighash-", ".scratch");
+                channel = FileChannel.open(file, READ, WRITE, DELETE_ON_CLOSE);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes, 0, length);
+            long position = end;
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+            into.add(end, length);
+            end = position;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return into;
+    }
+
+    private void read(long position, int length, Sink sink, ByteBuffer buf) throws IOException {
+        while (length > 0) {
+            buf.clear().limit(Math.min(length, buf.capacity()));
+            int count = channel.read(buf, position);
+            if (count < 0) {
+                throw new IOException("Scratch file truncated at " + position);
+            }
+            sink.write(buf.array(), 0, count);
+            position += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Deleted on close, or on exit if that failed
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Receives bytes read back from the file.
+     */
+    interface Sink {
+
+        void write(byte[] bytes, int offset, int length);
+    }
+
+    /**
+     * A fragment stored in the scratch file, as the ranges of it that were
+     * written, in order.
+     */
+    static final class Spilled {
+
+        private final Scratch scratch;
+        // Start and length pairs
+        private long[] extents = new long[4];
+        private int count;
+        private long length;
+
+        Spilled(Scratch scratch) {
+            this.scratch = scratch;
+        }
+
+        private void add(long start, int length) {
+            this.length += length;
+            if (count > 0 && extents[count - 2] + extents[count - 1] == start) {
+                // Nothing else was written in between
+                extents[count - 1] += length;
+                return;
+            }
+            if (count == extents.length) {
+                extents = Arrays.copyOf(extents, count * 2);
+            }
+            extents[count++] = start;
+            extents[count++] = length;
+        }
+
+        long length() {
+            return length;
+        }
+
+        /**
+         * Pass the bytes of this fragment to a sink, in blocks.
+         *
+         * @param sink A sink
+         */
+        void replay(Sink sink) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, 8192));
+            try {
+                for (int i = 0; i < count; i += 2) {
+                    // Extents merged above can exceed an int
+                    for (long start = extents[i], remaining = extents[i + 1]; remaining > 0;) {
+                        int chunk = (int) Math.min(remaining, Integer.MAX_VALUE);
+                        scratch.read(start, chunk, sink, buf);
+                        start += chunk;
+                        remaining -= chunk;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<spilled-" + length + ">";
+        }
+    }
+}
@@ -43,6 +43,16 @@ import com.sun.source.util.TreePath;
 import com.sun.source.util.TreePathScanner;
 import com.sun.source.util.TreeScanner;
 import com.sun.source.util.Trees;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -50,18 +60,39 @@ import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import static javax.lang.model.element.Modifier.PROTECTED;
@@ -89,13 +120,34 @@ import javax.lang.model.type.TypeMirror;
 public final class SigTree implements Signature, Iterable<ClassSignature> {
 
     private final Set<ClassSignature> children = new TreeSet<>();
+    private final Map<String, String> combinedHashes = new HashMap<>();
     private boolean useDirectHash = !Boolean.getBoolean("stringbuilder.hash");
+    private ClosureBudget closureBudget = ClosureBudget.UNLIMITED;
+    private boolean compactTokens;
+    private final AtomicLongArray budgetHits = new AtomicLongArray(ClosureBudget.Kind.values().length);
+    // Each renderer references its task's javac context, so entries are
+    // removed when the task finishes rather than left to a weak map
+    private final Map<JavacTask, TypeRenderer> renderers = new HashMap<>();
+    private BooleanSupplier cancelled = () -> false;
+    private Consumer<? super ClassSignature> onClass;
+    private HotspotReport hotspots;
+    // Methods whose previously computed drilldowns are still valid, by key
+    private Map<String, MethodSignature> reusable;
+    private long memoryBudget;
+    private final AtomicLong retained = new AtomicLong();
+    private Spill spill;
+    private Trace trace;
 
     private SigTree() {
 
     }
 
     public Iterator<ClassSignature> iterator() {
+        synchronized (combinedHashes) {
+            if (spill != null) {
+                return spill.iterator(children);
+            }
+        }
         return Collections.unmodifiableCollection(children).iterator();
     }
 
@@ -103,39 +155,358 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
         boolean deep = false;
         List<Path> paths = new ArrayList<>();
         boolean nextIsClasspath = false;
+        boolean nextIsAlgorithm = false;
+        boolean nextIsThreads = false;
+        boolean nextIsPartitioning = false;
+        boolean nextIsBudget = false;
+        boolean nextIsHotspots = false;
+        boolean nextIsManifest = false;
+        boolean nextIsBatch = false;
+        String batch = null;
+        boolean nextIsSave = false;
+        boolean nextIsIncremental = false;
+        boolean nextIsChanged = false;
+        boolean nextIsGit = false;
+        Path save = null;
+        Path incremental = null;
+        List<Path> changed = new ArrayList<>();
+        String gitRevisions = null;
+        boolean revisions = false;
+        boolean nextIsGitRevisions = false;
+        List<String> gitRevisionList = new ArrayList<>();
+        boolean nextIsCache = false;
+        boolean nextIsCacheSize = false;
+        Path cache = null;
+        long cacheSize = 1L << 30;
+        boolean nextIsServe = false;
+        boolean nextIsPort = false;
+        Path serve = null;
+        int port = 8080;
+        boolean nextIsMemoryBudget = false;
+        boolean nextIsTrace = false;
+        boolean nextIsExplain = false;
+        String explain = null;
+        Path manifest = null;
+        int hotspotCount = 0;
+        SigTreeConfig config = new SigTreeConfig();
+        boolean merkle = false;
+        boolean rollups = false;
+        int threads = Runtime.getRuntime().availableProcessors();
         String classpath = null;
+        List<String> algorithms = new ArrayList<>();
         for (String arg : args) {
             if ("--deep".equals(arg) || "-d".equals(arg)) {
                 deep = true;
             } else if ("-cp".equals(arg) || "--class-path".equals(arg)) {
                 nextIsClasspath = true;
                 continue;
+            } else if ("-a".equals(arg) || "--algorithm".equals(arg)) {
+                nextIsAlgorithm = true;
+                continue;
+            } else if ("-l".equals(arg) || "--lazy".equals(arg)) {
+                config.lazySourcePath(true);
+            } else if ("--tokens".equals(arg)) {
+                config.compactTokens(true);
+            } else if ("-m".equals(arg) || "--merkle".equals(arg)) {
+                merkle = true;
+            } else if ("-t".equals(arg) || "--threads".equals(arg)) {
+                nextIsThreads = true;
+                continue;
+            } else if ("-p".equals(arg) || "--partition".equals(arg)) {
+                nextIsPartitioning = true;
+                continue;
+            } else if ("-b".equals(arg) || "--budget".equals(arg)) {
+                nextIsBudget = true;
+                continue;
+            } else if ("--save".equals(arg)) {
+                nextIsSave = true;
+                continue;
+            } else if (nextIsSave) {
+                save = Paths.get(arg);
+            } else if ("--incremental".equals(arg)) {
+                nextIsIncremental = true;
+                continue;
+            } else if (nextIsIncremental) {
+                incremental = Paths.get(arg);
+            } else if ("--changed".equals(arg)) {
+                nextIsChanged = true;
+                continue;
+            } else if (nextIsChanged) {
+                for (String file : arg.split(",")) {
+                    if (!file.trim().isEmpty()) {
+                        changed.add(Paths.get(file.trim()));
+                    }
+                }
+            } else if ("--git".equals(arg)) {
+                nextIsGit = true;
+                continue;
+            } else if (nextIsGit) {
+                gitRevisions = arg;
+            } else if ("--revisions".equals(arg)) {
+                revisions = true;
+            } else if ("--git-revisions".equals(arg)) {
+                nextIsGitRevisions = true;
+                continue;
+            } else if (nextIsGitRevisions) {
+                for (String rev : arg.split(",")) {
+                    if (!rev.trim().isEmpty()) {
+                        gitRevisionList.add(rev.trim());
+                    }
+                }
+            } else if ("--cache".equals(arg)) {
+                nextIsCache = true;
+                continue;
+            } else if (nextIsCache) {
+                cache = Paths.get(arg);
+            } else if ("--cache-size".equals(arg)) {
+                nextIsCacheSize = true;
+                continue;
+            } else if (nextIsCacheSize) {
+                cacheSize = parseSize(arg);
+            } else if ("--memory-budget".equals(arg)) {
+                nextIsMemoryBudget = true;
+                continue;
+            } else if (nextIsMemoryBudget) {
+                config.memoryBudget(parseSize(arg));
+            } else if ("--trace".equals(arg)) {
+                nextIsTrace = true;
+                continue;
+            } else if (nextIsTrace) {
+                config.trace(Paths.get(arg));
+            } else if ("--explain".equals(arg)) {
+                nextIsExplain = true;
+                continue;
+            } else if (nextIsExplain) {
+                explain = arg;
+            } else if ("--serve".equals(arg)) {
+                nextIsServe = true;
+                continue;
+            } else if (nextIsServe) {
+                serve = Paths.get(arg);
+            } else if ("--port".equals(arg)) {
+                nextIsPort = true;
+                continue;
+            } else if (nextIsPort) {
+                port = Integer.parseInt(arg);
+            } else if ("--batch".equals(arg)) {
+                nextIsBatch = true;
+                continue;
+            } else if (nextIsBatch) {
+                batch = arg;
+            } else if ("-r".equals(arg) || "--rollups".equals(arg)) {
+                rollups = true;
+            } else if ("--manifest".equals(arg)) {
+                nextIsManifest = true;
+                continue;
+            } else if (nextIsManifest) {
+                manifest = Paths.get(arg);
+            } else if ("--hotspots".equals(arg)) {
+                nextIsHotspots = true;
+                continue;
+            } else if (nextIsHotspots) {
+                hotspotCount = Integer.parseInt(arg);
+                config.hotspots(true);
+            } else if (nextIsBudget) {
+                config.closureBudget(parseBudget(arg));
+            } else if (nextIsThreads) {
+                threads = Integer.parseInt(arg);
+            } else if (nextIsPartitioning) {
+                config.partitioning(SigTreeConfig.Partitioning.valueOf(arg.toUpperCase()));
             } else if (nextIsClasspath) {
                 classpath = arg;
+            } else if (nextIsAlgorithm) {
+                for (String alg : arg.split(",")) {
+                    if (!alg.trim().isEmpty()) {
+                        algorithms.add(alg.trim());
+                    }
+                }
             } else {
-                Path path = Paths.get(arg);
-                if (!Files.exists(path)) {
-                    System.err.println("Does not exist: " + path);
+                paths.add(Paths.get(arg));
+            }
+            nextIsClasspath = false;
+            nextIsAlgorithm = false;
+            nextIsThreads = false;
+            nextIsPartitioning = false;
+            nextIsBudget = false;
+            nextIsHotspots = false;
+            nextIsManifest = false;
+            nextIsBatch = false;
+            nextIsSave = false;
+            nextIsIncremental = false;
+            nextIsChanged = false;
+            nextIsGit = false;
+            nextIsGitRevisions = false;
+            nextIsCache = false;
+            nextIsCacheSize = false;
+            nextIsServe = false;
+            nextIsPort = false;
+            nextIsMemoryBudget = false;
+            nextIsTrace = false;
+            nextIsExplain = false;
+        }
+        // Checked once all arguments are read, since with --revisions each is
+        // a comma-separated list of roots
+        for (Path path : paths) {
+            for (Path root : revisions ? Revisions.roots(path.toString()) : new Path[]{path}) {
+                if (!Files.exists(root)) {
+                    System.err.println("Does not exist: " + root);
                     System.exit(1);
                 }
-                if (!Files.isDirectory(path)) {
-                    System.err.println("Not a directory: " + path);
+                if (!Files.isDirectory(root) && !SignatureHashGenerator.isArchive(root)) {
+                    System.err.println("Not a directory, jar or zip: " + root);
                     System.exit(1);
                 }
-                paths.add(path);
             }
-            nextIsClasspath = false;
+        }
+        if (serve != null) {
+            // The server's threads keep the VM running
+            ManifestServer server = new ManifestServer(serve, new InetSocketAddress(port), defaultExecutor()).start();
+            System.err.println("Serving manifests in " + serve + " on port " + server.port());
+            return;
+        }
+        if (batch != null) {
+            // One JSON job per line, from a file or stdin
+            try (BufferedReader in = "-".equals(batch)
+                    ? new BufferedReader(new InputStreamReader(System.in, UTF_8))
+                    : Files.newBufferedReader(Paths.get(batch), UTF_8)) {
+                new Batch(System.out, threads).run(in);
+            }
+            return;
         }
         if (paths.isEmpty()) {
             System.err.println("No files specified.");
-            System.err.println("Usage: java -jar sighash.jar [--deep] "
-                    + "-cp /class/path/a:/class/path/b source/dir/a source/dir/b");
+            System.err.println("Usage: java -jar sighash.jar [--deep [--tokens]] [--algorithm SHA-256,SHA-512,XXH64] "
+                    + "[--lazy] [--merkle] [--rollups] [--threads 8] [--partition none|root|package] "
+                    + "[--budget depth:nodes:callees] [--memory-budget 512m] [--trace dir] [--hotspots 20] [--manifest members.shm] -cp /class/path/a:/class/path/b source/dir/a source/dir/b");
+            System.err.println("   or: java -jar sighash.jar --batch jobs.jsonl|- [--threads 8]");
+            System.err.println("   or: java -jar sighash.jar --serve manifest/dir [--port 8080]");
+            System.err.println("Incremental: --save tree.sig, then --incremental tree.sig "
+                    + "[--changed a.java,b.java] [--git base[..head]] with the same source dirs");
+            System.err.println("Caching: --cache /shared/dir [--cache-size 4g] reuses trees for identical inputs");
+            System.err.println("Versions: --revisions v1/src,v1/gen v2/src ... (oldest first), "
+                    + "or --git-revisions v1.0,v1.1,HEAD source/dir/a source/dir/b");
+            System.err.println("Explain one member: --explain 'com.foo.Bar#baz(java.lang.String)' [--tokens] "
+                    + "source/dir/a source/dir/b");
             System.exit(2);
         }
-        SigTree tree = SigTree.create(classpath, paths.toArray(new Path[0]));
-        Hasher hash = new Hasher(MessageDigest.getInstance("SHA-512"));
-        tree.hashInto(hash, deep);
-        System.out.println(hash.toString());
+        if (algorithms.isEmpty()) {
+            algorithms.add("SHA-512");
+        }
+        config.threads(Math.max(1, threads));
+        if (explain != null) {
+            System.out.print(SigTree.explain(classpath, config, explain, paths.toArray(new Path[0])));
+            return;
+        }
+        if (revisions || !gitRevisionList.isEmpty()) {
+            try (Revisions revs = new Revisions(classpath, config, deep, algorithms)) {
+                if (revisions) {
+                    // Each argument is one version, as comma-separated roots
+                    for (Path p : paths) {
+                        revs.hash(p.toString(), Revisions.roots(p.toString()));
+                    }
+                } else {
+                    for (String rev : gitRevisionList) {
+                        revs.hashGitRevision(rev, paths.toArray(new Path[0]));
+                    }
+                }
+                revs.print(System.out);
+            }
+            return;
+        }
+        SigTree tree;
+        if (incremental != null) {
+            if (gitRevisions != null) {
+                int ix = gitRevisions.indexOf("..");
+                changed.addAll(Git.changedFiles(Paths.get("").toAbsolutePath(),
+                        ix < 0 ? gitRevisions : gitRevisions.substring(0, ix),
+                        ix < 0 ? null : gitRevisions.substring(ix + 2)));
+            }
+            tree = SigTree.load(incremental).update(classpath, changed, paths.toArray(new Path[0]));
+        } else if (cache != null) {
+            tree = new ResultCache(cache, cacheSize).getOrCreate(classpath, config, paths.toArray(new Path[0]));
+        } else {
+            tree = SigTree.create(classpath, config, paths.toArray(new Path[0]));
+        }
+        if (save != null) {
+            tree.save(save);
+        }
+        Map<String, String> hashes;
+        if (merkle) {
+            hashes = new LinkedHashMap<>();
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+            try {
+                for (String alg : algorithms) {
+                    hashes.put(alg, tree.merkleRoot(alg, deep, pool));
+                }
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            hashes = tree.hashes(deep, algorithms.toArray(new String[0]));
+        }
+        if (tree.spilledClasses() > 0) {
+            System.err.println("Memory budget exceeded: " + tree.spilledClasses() + " classes spilled to disk");
+        }
+        Map<ClosureBudget.Kind, Long> hits = tree.budgetHits();
+        if (!hits.isEmpty()) {
+            System.err.println("Closure budget hits: " + hits);
+        }
+        if (tree.hotspots() != null) {
+            System.err.print(tree.hotspots().format(hotspotCount));
+        }
+        if (manifest != null) {
+            Manifest.write(manifest, algorithms.get(0), deep, hashes.get(algorithms.get(0)),
+                    tree.memberDigests(algorithms.get(0), deep));
+            Manifest.writeCallers(Manifest.callersFile(manifest), tree.callers());
+        }
+        if (hashes.size() == 1) {
+            System.out.println(hashes.values().iterator().next());
+        } else {
+            for (Map.Entry<String, String> e : hashes.entrySet()) {
+                System.out.println(e.getKey() + " " + e.getValue());
+            }
+        }
+        if (rollups) {
+            for (Map.Entry<String, String> e : tree.moduleHashes(algorithms.get(0), deep).entrySet()) {
+                System.out.println("module " + e.getKey() + " " + e.getValue());
+            }
+            for (Map.Entry<String, String> e : tree.packageHashes(algorithms.get(0), deep).entrySet()) {
+                System.out.println("package " + e.getKey() + " " + e.getValue());
+            }
+        }
+    }
+
+    private static long parseSize(String arg) {
+        String lower = arg.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+            case 'k':
+                multiplier = 1L << 10;
+                break;
+            case 'm':
+                multiplier = 1L << 20;
+                break;
+            case 'g':
+                multiplier = 1L << 30;
+                break;
+            default:
+                return Long.parseLong(lower);
+        }
+        return Long.parseLong(lower.substring(0, lower.length() - 1)) * multiplier;
+    }
+
+    private static ClosureBudget parseBudget(String arg) {
+        // depth:nodes:callees, with empty or * meaning unlimited
+        String[] parts = arg.split(":", -1);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Budget should be depth:nodes:callees, e.g. 8:100000:*, not " + arg);
+        }
+        int[] values = new int[3];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            values[i] = part.isEmpty() || "*".equals(part) ? Integer.MAX_VALUE : Integer.parseInt(part);
+        }
+        return new ClosureBudget(values[0], values[1], values[2]);
     }
 
     private static final class PublicProtectedPredicate implements Predicate<Element> {
@@ -148,60 +519,938 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
     }
 
     public static SigTree create(String cp, Path... paths) throws Exception {
+        return create(cp, new SigTreeConfig(), paths);
+    }
+
+    public static SigTree create(String cp, SigTreeConfig config, Path... paths) throws Exception {
+        return create(new SignatureHashGenerator(cp, paths), config);
+    }
+
+    /**
+     * Create a SigTree from sources held in memory, keyed by their path
+     * relative to the source root (e.g. <code>com/foo/Bar.java</code>);
+     * nothing is read from or written to disk other than the classpath.
+     *
+     * @param cp The classpath, or null
+     * @param sources The sources
+     * @return A tree
+     * @throws Exception If something goes wrong
+     */
+    public static SigTree create(String cp, Map<String, ? extends CharSequence> sources) throws Exception {
+        List<MemorySource> memory = new ArrayList<>(sources.size());
+        for (Map.Entry<String, ? extends CharSequence> e : sources.entrySet()) {
+            memory.add(new MemorySource(e.getKey(), e.getValue()));
+        }
+        return create(cp, new SigTreeConfig(), memory);
+    }
+
+    /**
+     * Create a SigTree from in-memory sources, optionally together with
+     * source roots on disk; in-memory sources are visible to javac on the
+     * source path, so they can reference each other.
+     *
+     * @param cp The classpath, or null
+     * @param config The configuration
+     * @param sources The in-memory sources
+     * @param paths Any source roots on disk
+     * @return A tree
+     * @throws Exception If something goes wrong
+     */
+    public static SigTree create(String cp, SigTreeConfig config,
+            Collection<? extends MemorySource> sources, Path... paths) throws Exception {
+        return create(new SignatureHashGenerator(cp, paths).memorySources(sources), config);
+    }
+
+    static SigTree create(SignatureHashGenerator gen, SigTreeConfig config) throws Exception {
+        return create(gen, config, () -> false);
+    }
+
+    private static SigTree create(SignatureHashGenerator gen, SigTreeConfig config, BooleanSupplier cancelled) throws Exception {
+        return build(gen, config, cancelled, null, null);
+    }
+
+    /**
+     * Run javac, passing each class to the consumer once complete, without
+     * retaining any of them.
+     */
+    static void publish(SignatureHashGenerator gen, SigTreeConfig config, BooleanSupplier cancelled,
+            Consumer<? super ClassSignature> onClass) throws Exception {
+        build(gen, config, cancelled, onClass, null);
+    }
+
+    private static SigTree build(SignatureHashGenerator gen, SigTreeConfig config, BooleanSupplier cancelled,
+            Consumer<? super ClassSignature> onClass, Map<String, MethodSignature> reusable) throws Exception {
         PublicProtectedPredicate pred = new PublicProtectedPredicate();
-        SignatureHashGenerator gen = new SignatureHashGenerator(cp, paths);
+        gen.config(config).cancelled(cancelled);
         SigTree tree = new SigTree();
-        gen.go((JavacTask task, TypeMirror type, TypeElement element, Trees trees) -> {
-            tree.add(task, element, pred, trees);
+        tree.closureBudget = config.closureBudget();
+        tree.compactTokens = config.compactTokens();
+        tree.cancelled = cancelled;
+        tree.onClass = onClass;
+        tree.hotspots = config.hotspots() ? new HotspotReport() : null;
+        tree.reusable = reusable;
+        tree.memoryBudget = onClass == null ? config.memoryBudget() : 0;
+        tree.trace = config.trace() == null ? null : new Trace(config.trace());
+        gen.go(new HashBuilder() {
+            @Override
+            public void enterClass(JavacTask task, TypeMirror type, TypeElement element, Trees trees) {
+                tree.add(task, element, pred, trees);
+            }
+
+            @Override
+            public void taskFinished(JavacTask task) {
+                tree.taskFinished(task);
+            }
         });
+        // Only needed during creation
+        tree.cancelled = () -> false;
+        tree.onClass = null;
+        tree.reusable = null;
+        tree.trace = null;
         return tree;
     }
 
+    /**
+     * Create a publisher which emits each class signature as soon as it is
+     * complete, followed by its method and field signatures, rather than
+     * collecting them into a SigTree; each subscriber gets its own javac
+     * run on the executor, throttled by its demand.
+     *
+     * @param cp The classpath, or null
+     * @param config The configuration
+     * @param executor The executor to run javac on
+     * @param paths The source roots
+     * @return A publisher
+     */
+    public static SignaturePublisher publisher(String cp, SigTreeConfig config, Executor executor, Path... paths) {
+        return publisher(cp, config, executor, Collections.emptySet(), paths);
+    }
+
+    public static SignaturePublisher publisher(String cp, SigTreeConfig config, Executor executor,
+            Collection<? extends MemorySource> sources, Path... paths) {
+        return new SignaturePublisher(cp, config, executor, sources, paths);
+    }
+
+    public static CompletableFuture<SigTree> createAsync(String cp, SigTreeConfig config, Path... paths) {
+        return createAsync(cp, config, defaultExecutor(), Collections.emptySet(), paths);
+    }
+
+    /**
+     * Create a SigTree in the background.  Work stops soon after the
+     * returned future is completed by anything else - cancelled, completed
+     * exceptionally, or timed out - as cancellation is checked as javac
+     * parses and attributes each file, and between classes and methods.
+     *
+     * @param cp The classpath, or null
+     * @param config The configuration
+     * @param executor The executor to run javac on
+     * @param sources Any in-memory sources
+     * @param paths Any source roots on disk
+     * @return A future
+     */
+    public static CompletableFuture<SigTree> createAsync(String cp, SigTreeConfig config, Executor executor,
+            Collection<? extends MemorySource> sources, Path... paths) {
+        return async(cp, config, executor, sources, paths, tree -> tree);
+    }
+
+    /**
+     * Create a SigTree in the background and compute its hash; cancellation
+     * works as with <code>createAsync()</code>.
+     *
+     * @param cp The classpath, or null
+     * @param config The configuration
+     * @param executor The executor to run javac on
+     * @param algorithm The hash algorithm
+     * @param deep Whether to hash in deep mode
+     * @param paths The source roots
+     * @return A future
+     */
+    public static CompletableFuture<String> hashAsync(String cp, SigTreeConfig config, Executor executor,
+            String algorithm, boolean deep, Path... paths) {
+        return async(cp, config, executor, Collections.emptySet(), paths, tree -> tree.hash(algorithm, deep));
+    }
+
+    public CompletableFuture<String> hashAsync(String algorithm, boolean deep, Executor executor) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        run(executor, result, () -> hash(algorithm, deep));
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> async(String cp, SigTreeConfig config, Executor executor,
+            Collection<? extends MemorySource> sources, Path[] paths, TreeFunction<T> then) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // Nobody is interested once the future is done, whether because it
+        // was cancelled, timed out or completed by some other means
+        BooleanSupplier cancelled = result::isDone;
+        run(executor, result, () -> {
+            SignatureHashGenerator gen = new SignatureHashGenerator(cp, paths).memorySources(sources);
+            return then.apply(create(gen, config, cancelled));
+        });
+        return result;
+    }
+
+    private static <T> void run(Executor executor, CompletableFuture<T> result, Callable<T> work) {
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    result.complete(work.call());
+                } catch (CancellationException ex) {
+                    result.cancel(false);
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private interface TreeFunction<T> {
+
+        T apply(SigTree tree) throws Exception;
+    }
+
+    /**
+     * The executor used when none is passed:  one virtual thread per task
+     * where the JDK has them (looked up reflectively, since we compile
+     * against an older release), or else a cached pool of daemon threads.
+     *
+     * @return An executor
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    private static final class DefaultExecutor {
+
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "sigtree");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+    }
+
     public static SigTree create(Path... paths) throws Exception {
         return create(null, paths);
     }
 
+    /**
+     * Save this tree, so it can later be loaded and incrementally updated
+     * rather than recomputed.
+     *
+     * @param file The file to write
+     * @throws IOException If something goes wrong
+     */
+    public void save(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536))) {
+            out.writeInt(SigTreeIO.MAGIC);
+            out.writeBoolean(compactTokens);
+            out.writeInt(closureBudget.maxDepth());
+            out.writeInt(closureBudget.maxNodes());
+            out.writeInt(closureBudget.maxCallees());
+            int count = 0;
+            for (ClassSignature clazz : this) {
+                count++;
+            }
+            out.writeInt(count);
+            for (ClassSignature clazz : this) {
+                clazz.write(out);
+            }
+        }
+    }
+
+    /**
+     * Load a tree saved with <code>save()</code>.
+     *
+     * @param file The file
+     * @return A tree
+     * @throws IOException If the file cannot be read or is not a saved tree
+     */
+    public static SigTree load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+            if (in.readInt() != SigTreeIO.MAGIC) {
+                throw new IOException("Not a saved SigTree: " + file);
+            }
+            SigTree tree = new SigTree();
+            tree.compactTokens = in.readBoolean();
+            tree.closureBudget = new ClosureBudget(in.readInt(), in.readInt(), in.readInt());
+            for (int i = in.readInt(); i > 0; i--) {
+                tree.children.add(ClassSignature.read(in));
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Create a new tree from this one, recomputing only the classes in the
+     * changed files, and those whose deep hashes incorporate code from them;
+     * everything else is reused as-is, as are the drilldowns of methods in
+     * the latter whose closures read none of the changed files. Only the
+     * files being recompiled are passed to javac, with the source roots on
+     * the source path. The closure budget and encoding this tree was built
+     * with are used.
+     * <p>
+     * Changes which alter how an unchanged file's code resolves without
+     * its closure having read the changed file - such as adding an overload
+     * that an unchanged caller now binds to - are not detected; run a full
+     * build periodically.
+     * </p>
+     *
+     * @param cp The classpath, or null
+     * @param changed Files which were changed, added or deleted
+     * @param roots The source roots
+     * @return A new tree
+     * @throws Exception If something goes wrong
+     */
+    public SigTree update(String cp, Collection<? extends Path> changed, Path... roots) throws Exception {
+        Set<String> changedUris = uris(changed);
+        Set<Path> recompile = new HashSet<>();
+        for (Path p : changed) {
+            Path abs = p.toAbsolutePath().normalize();
+            if (Files.exists(abs)) {
+                recompile.add(abs);
+            }
+        }
+        Map<String, ClassSignature> classes = new TreeMap<>();
+        Map<String, MethodSignature> reuse = new HashMap<>();
+        for (ClassSignature clazz : this) {
+            String file = clazz.sourceFile();
+            if (file == null || (!changedUris.contains(file)
+                    && Collections.disjoint(changedUris, clazz.dependencies()))) {
+                classes.put(clazz.name(), clazz);
+            } else if (!changedUris.contains(file) && file.startsWith("file:")) {
+                // Unchanged, but depends on something that was; it must be
+                // attributed again, but methods whose closures did not read
+                // the changed files keep their drilldowns
+                recompile.add(Paths.get(URI.create(file)).toAbsolutePath().normalize());
+                for (MethodSignature m : clazz.methods()) {
+                    if (Collections.disjoint(changedUris, m.dependencies())) {
+                        reuse.put(clazz.name() + '#' + m.key(), m);
+                    }
+                }
+            }
+        }
+        SigTreeConfig config = new SigTreeConfig().closureBudget(closureBudget)
+                .compactTokens(compactTokens).threads(1);
+        SigTree fresh = build(new SignatureHashGenerator(cp, roots).only(recompile), config,
+                () -> false, null, reuse);
+        for (ClassSignature clazz : fresh) {
+            classes.put(clazz.name(), clazz);
+        }
+        SigTree result = new SigTree();
+        result.closureBudget = closureBudget;
+        result.compactTokens = compactTokens;
+        result.children.addAll(classes.values());
+        return result;
+    }
+
+    /**
+     * Find the classes and members whose deep hashes may no longer be valid
+     * if the passed files have changed - every class and member declared in
+     * them, and every method whose closure read any of them, along with its
+     * class.
+     *
+     * @param changed Files which were changed, added or deleted
+     * @return Keys as used by <code>memberDigests()</code>
+     * @throws IOException If a path cannot be resolved
+     */
+    public SortedSet<String> invalidatedBy(Collection<? extends Path> changed) throws IOException {
+        Set<String> changedUris = uris(changed);
+        SortedSet<String> result = new TreeSet<>();
+        for (ClassSignature clazz : this) {
+            boolean all = changedUris.contains(clazz.sourceFile());
+            for (MethodSignature m : clazz.methods()) {
+                if (all || !Collections.disjoint(changedUris, m.dependencies())) {
+                    result.add(clazz.name() + '#' + m.key());
+                    result.add(clazz.name());
+                }
+            }
+            if (all) {
+                result.add(clazz.name());
+                for (FieldSignature f : clazz.fields()) {
+                    result.add(clazz.name() + '#' + f.name());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Explain the deep hash of a single method or constructor, showing the
+     * text hashed for it and the callees its closure reached. Only the file
+     * declaring it is compiled, with the source roots on the source path, so
+     * javac attributes just that file and whatever the closure reaches, which
+     * takes seconds even for a very large source tree. The member need not be
+     * public. The digest is the same as a full build with the same
+     * configuration computes for the member, provided the same sources are
+     * visible.
+     *
+     * @param cp The classpath, or null
+     * @param config The configuration; its closure budget and encoding are
+     * used
+     * @param member A member key, as used by <code>memberDigests()</code>,
+     * e.g. <code>com.foo.Bar#baz(java.lang.String)</code>
+     * @param roots The source roots
+     * @return An explanation
+     * @throws IllegalArgumentException If the member cannot be found
+     * @throws Exception If something goes wrong
+     */
+    public static Explanation explain(String cp, SigTreeConfig config, String member, Path... roots) throws Exception {
+        int ix = member.indexOf('#');
+        if (ix <= 0 || ix == member.length() - 1) {
+            throw new IllegalArgumentException("Not a member key: " + member);
+        }
+        String className = member.substring(0, ix);
+        String key = member.substring(ix + 1);
+        SignatureHashGenerator gen = new SignatureHashGenerator(cp, roots);
+        Path file = gen.locate(className);
+        if (file == null) {
+            throw new IllegalArgumentException("No source for " + className + " in " + Arrays.toString(roots));
+        }
+        SigTree tree = new SigTree();
+        tree.closureBudget = config.closureBudget();
+        tree.compactTokens = config.compactTokens();
+        Explanation[] result = new Explanation[1];
+        gen.config(config).only(Collections.singleton(file));
+        gen.go((JavacTask task, TypeMirror type, TypeElement element, Trees trees) -> {
+            TypeElement target = task.getElements().getTypeElement(className);
+            if (result[0] != null || target == null) {
+                return;
+            }
+            TypeRenderer types = tree.renderer(task);
+            for (Element child : target.getEnclosedElements()) {
+                if (child.getKind() == ElementKind.METHOD || child.getKind() == ElementKind.CONSTRUCTOR) {
+                    if (key.equals(new MethodSignature((ExecutableElement) child, types).key())) {
+                        result[0] = tree.explain(task, trees, (ExecutableElement) child, member);
+                        return;
+                    }
+                }
+            }
+        });
+        if (result[0] == null) {
+            throw new IllegalArgumentException("No method or constructor " + member + " in " + file);
+        }
+        return result[0];
+    }
+
+    private Explanation explain(JavacTask task, Trees trees, ExecutableElement method, String member) {
+        TreePath pth = trees.getPath(method);
+        if (pth == null) {
+            // Implicit, such as an enum's values(), so there is no drilldown
+            return new Explanation(member, null, "", new Explanation.Node(member, Explanation.Kind.NO_SOURCE, null));
+        }
+        TypeRenderer types = renderer(task);
+        Explanation.Node root = new Explanation.Node(member, Explanation.Kind.SCANNED,
+                pth.getCompilationUnit().getSourceFile().toUri().toString());
+        StringBuilder text = new StringBuilder(2048);
+        try (Closure closure = new Closure(closureBudget, budgetHits, types)) {
+            closure.explaining = root;
+            new TV(task, closure).scan(pth, new StringBuilderStringConsumer(text));
+        }
+        String sig;
+        if (compactTokens) {
+            // Scan again, since the readable text is not what is hashed
+            try (Closure closure = new Closure(closureBudget, budgetHits, types)) {
+                sig = runHashDrilldown(pth, task, closure, drilldownDigest());
+            }
+        } else {
+            MessageDigest digest = drilldownDigest();
+            digest.update(text.toString().getBytes(UTF_8));
+            sig = Base64.getUrlEncoder().encodeToString(digest.digest());
+        }
+        return new Explanation(member, sig, text.toString(), root);
+    }
+
+    private static Set<String> uris(Collection<? extends Path> files) throws IOException {
+        // javac may report either form, depending on how the root was given
+        Set<String> result = new HashSet<>();
+        for (Path p : files) {
+            Path abs = p.toAbsolutePath().normalize();
+            result.add(abs.toUri().toString());
+            if (Files.exists(abs)) {
+                result.add(abs.toRealPath().toUri().toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a digest of every class and member in this tree, keyed by the
+     * class name for classes, <code>com.foo.Bar#baz(int)</code> for methods
+     * and constructors, and <code>com.foo.Bar#FIELD</code> for fields.
+     *
+     * @param algorithm The hash algorithm
+     * @param deep Whether or not to include method bodies
+     * @return A sorted map of key to digest
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    public SortedMap<String, byte[]> memberDigests(String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        SortedMap<String, byte[]> result = new TreeMap<>();
+        for (ClassSignature clazz : this) {
+            result.put(clazz.name(), clazz.digest(algorithm, deep));
+            for (MethodSignature m : clazz.methods()) {
+                result.put(clazz.name() + '#' + m.key(), digestOf(m, algorithm, deep));
+            }
+            for (FieldSignature f : clazz.fields()) {
+                result.put(clazz.name() + '#' + f.name(), digestOf(f, algorithm, deep));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the callers of every method and constructor invoked by a method in
+     * this tree, keyed as in <code>memberDigests()</code>.
+     *
+     * @return A sorted map of callee to callers
+     */
+    public SortedMap<String, SortedSet<String>> callers() {
+        SortedMap<String, SortedSet<String>> result = new TreeMap<>();
+        for (ClassSignature clazz : this) {
+            for (MethodSignature m : clazz.methods()) {
+                for (String callee : m.calls()) {
+                    result.computeIfAbsent(callee, k -> new TreeSet<>()).add(clazz.name() + '#' + m.key());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a roll-up hash for each package, computed from the digests of its
+     * classes in order, so that a comparison can skip any package whose
+     * roll-up is unchanged and look inside only those which differ.
+     *
+     * @param algorithm The hash algorithm
+     * @param deep Whether or not to include method bodies
+     * @return A sorted map of package name (empty for the default package)
+     * to hash
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    public SortedMap<String, String> packageHashes(String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        SortedMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, byte[]> e : packageDigests(algorithm, deep).entrySet()) {
+            result.put(e.getKey(), Base64.getUrlEncoder().encodeToString(e.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Get a roll-up hash for each named module that classes in this tree
+     * were compiled as part of, computed from the roll-ups of its packages
+     * in order.
+     *
+     * @param algorithm The hash algorithm
+     * @param deep Whether or not to include method bodies
+     * @return A sorted map of module name to hash, empty if no module-info
+     * was compiled
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    public SortedMap<String, String> moduleHashes(String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        Map<String, String> moduleForPackage = new HashMap<>();
+        for (ClassSignature clazz : this) {
+            if (clazz.moduleName() != null) {
+                moduleForPackage.put(clazz.packageName(), clazz.moduleName());
+            }
+        }
+        SortedMap<String, Hasher> hashers = new TreeMap<>();
+        for (Map.Entry<String, byte[]> e : packageDigests(algorithm, deep).entrySet()) {
+            String module = moduleForPackage.get(e.getKey());
+            if (module != null) {
+                Hasher hasher = hashers.get(module);
+                if (hasher == null) {
+                    hashers.put(module, hasher = new Hasher(DigestFactory.create(algorithm)));
+                }
+                hasher.accept(e.getKey());
+                hasher.accept(e.getValue());
+            }
+        }
+        SortedMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, Hasher> e : hashers.entrySet()) {
+            result.put(e.getKey(), e.getValue().toString());
+        }
+        return result;
+    }
+
+    private SortedMap<String, byte[]> packageDigests(String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        SortedMap<String, Hasher> hashers = new TreeMap<>();
+        // Children are sorted by name, so each package's classes are hashed
+        // in a stable order
+        for (ClassSignature clazz : this) {
+            Hasher hasher = hashers.get(clazz.packageName());
+            if (hasher == null) {
+                hashers.put(clazz.packageName(), hasher = new Hasher(DigestFactory.create(algorithm)));
+            }
+            hasher.accept(clazz.digest(algorithm, deep));
+        }
+        SortedMap<String, byte[]> result = new TreeMap<>();
+        for (Map.Entry<String, Hasher> e : hashers.entrySet()) {
+            result.put(e.getKey(), e.getValue().done());
+        }
+        return result;
+    }
+
+    private static byte[] digestOf(Signature sig, String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        Hasher hasher = new Hasher(DigestFactory.create(algorithm));
+        sig.hashInto(hasher, deep);
+        return hasher.done();
+    }
+
+    /**
+     * Get the per-method costs of building this tree, if it was created with
+     * hotspots enabled in its configuration.
+     *
+     * @return A report, or null
+     */
+    public HotspotReport hotspots() {
+        return hotspots;
+    }
+
+    /**
+     * Get the number of times each limit of the closure budget this tree was
+     * created with was hit, in which case a callee's name was hashed rather
+     * than its body.
+     *
+     * @return A map of budget kind to count, including only kinds which were
+     * hit at least once
+     */
+    public Map<ClosureBudget.Kind, Long> budgetHits() {
+        Map<ClosureBudget.Kind, Long> result = new EnumMap<>(ClosureBudget.Kind.class);
+        for (ClosureBudget.Kind kind : ClosureBudget.Kind.values()) {
+            long count = budgetHits.get(kind.ordinal());
+            if (count > 0) {
+                result.put(kind, count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the hash of this tree, feeding every element of every class
+     * through a single digest. This is the value the command line prints
+     * and a manifest stores; <code>combinedHash()</code> and
+     * <code>merkleRoot()</code> are different hashes which never equal it.
+     *
+     * @param algorithm A MessageDigest algorithm
+     * @param deep Whether or not to include method bodies
+     * @return A URL-safe base-64 hash
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
     public String hash(String algorithm, boolean deep) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        MessageDigest digest = DigestFactory.create(algorithm);
         Hasher hasher = new Hasher(digest);
         hashInto(hasher, deep);
         return hasher.toString();
     }
 
+    /**
+     * Compute hashes with several algorithms in a single pass over the tree.
+     * Each value is identical to what <code>hash()</code> returns for the
+     * same algorithm.
+     *
+     * @param deep Whether or not to include method bodies
+     * @param algorithms One or more algorithms, e.g. SHA-256, SHA-512 and
+     * XXH64
+     * @return A map of algorithm name to URL-safe base-64 hash, in the order
+     * the algorithms were passed
+     * @throws NoSuchAlgorithmException If an algorithm is unknown
+     */
+    public Map<String, String> hashes(boolean deep, String... algorithms) throws NoSuchAlgorithmException {
+        MultiHasher hasher = new MultiHasher(algorithms);
+        hashInto(hasher, deep);
+        return hasher.hashes();
+    }
+
+    /**
+     * Compute a hash by combining the (cached) digests of each class in sorted
+     * order, rather than feeding every element of every class through a
+     * single digest. Hashing the same tree repeatedly with this method, with
+     * different algorithms or in shallow and deep mode, only walks each class
+     * once per algorithm and mode.
+     * <p>
+     * This is a different hash from <code>hash()</code>, not a faster way of
+     * computing it: it is a digest of digests, so it never equals what
+     * <code>hash()</code> returns (or the command line prints) for the same
+     * tree and arguments, and should only be compared with other values from
+     * this method.
+     * </p>
+     *
+     * @param algorithm A MessageDigest algorithm
+     * @param deep Whether or not to include method bodies
+     * @return A URL-safe base-64 hash
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    public String combinedHash(String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        String key = algorithm + (deep ? ":deep" : ":shallow");
+        synchronized (combinedHashes) {
+            String result = combinedHashes.get(key);
+            if (result != null) {
+                return result;
+            }
+        }
+        MessageDigest digest = DigestFactory.create(algorithm);
+        for (ClassSignature clazz : this) {
+            digest.update(clazz.digest(algorithm, deep));
+        }
+        String result = Base64.getUrlEncoder().encodeToString(digest.digest());
+        synchronized (combinedHashes) {
+            combinedHashes.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Compute a Merkle root over the per-class digests of this tree, hashing
+     * classes in parallel on the common fork-join pool.
+     *
+     * @param algorithm A MessageDigest algorithm
+     * @param deep Whether or not to include method bodies
+     * @return A URL-safe base-64 hash
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    public String merkleRoot(String algorithm, boolean deep) throws NoSuchAlgorithmException {
+        return merkleRoot(algorithm, deep, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Compute a Merkle root over the per-class digests of this tree, hashing
+     * classes in parallel on the passed pool. The shape of the Merkle tree
+     * depends only on the number of classes (as in RFC 6962, the left subtree
+     * of any node holds the largest power of two leaves smaller than the
+     * node's leaf count), and leaves are always in sorted class order, so the
+     * result is the same no matter how many threads compute it.
+     *
+     * @param algorithm A MessageDigest algorithm
+     * @param deep Whether or not to include method bodies
+     * @param pool The pool to compute class digests in
+     * @return A URL-safe base-64 hash
+     * @throws NoSuchAlgorithmException If the algorithm is unknown
+     */
+    public String merkleRoot(String algorithm, boolean deep, ForkJoinPool pool) throws NoSuchAlgorithmException {
+        // Fail fast on a bad algorithm rather than inside the pool
+        DigestFactory digests = DigestFactory.forAlgorithm(algorithm);
+        ClassSignature[] classes = null;
+        byte[][] leaves = null;
+        synchronized (combinedHashes) {
+            if (spill == null) {
+                classes = children.toArray(new ClassSignature[children.size()]);
+            }
+        }
+        if (classes == null) {
+            // Spilled - read each class back once, in order, keeping only
+            // its digest
+            List<byte[]> digested = new ArrayList<>();
+            for (ClassSignature clazz : this) {
+                digested.add(clazz.digest(algorithm, deep));
+            }
+            leaves = digested.toArray(new byte[digested.size()][]);
+        }
+        int count = classes == null ? leaves.length : classes.length;
+        byte[] root;
+        if (count == 0) {
+            root = digests.newDigest().digest();
+        } else {
+            root = pool.invoke(new MerkleTask(classes, leaves, 0, count, digests, deep));
+        }
+        return Base64.getUrlEncoder().encodeToString(root);
+    }
+
+    private static final class MerkleTask extends RecursiveTask<byte[]> {
+
+        private static final long serialVersionUID = 1L;
+        private static final byte LEAF = 0;
+        private static final byte NODE = 1;
+        private final ClassSignature[] classes;
+        // Precomputed class digests, if the classes are not in memory
+        private final byte[][] leaves;
+        private final int start;
+        private final int end;
+        private final DigestFactory digests;
+        private final boolean deep;
+
+        MerkleTask(ClassSignature[] classes, byte[][] leaves, int start, int end, DigestFactory digests, boolean deep) {
+            this.classes = classes;
+            this.leaves = leaves;
+            this.start = start;
+            this.end = end;
+            this.digests = digests;
+            this.deep = deep;
+        }
+
+        @Override
+        protected byte[] compute() {
+            try {
+                int count = end - start;
+                if (count == 1) {
+                    MessageDigest digest = digests.newDigest();
+                    digest.update(LEAF);
+                    digest.update(leaves != null ? leaves[start] : classes[start].digest(digests.algorithm(), deep));
+                    return digest.digest();
+                }
+                int split = Integer.highestOneBit(count - 1);
+                MerkleTask left = new MerkleTask(classes, leaves, start, start + split, digests, deep);
+                MerkleTask right = new MerkleTask(classes, leaves, start + split, end, digests, deep);
+                left.fork();
+                byte[] rightResult = right.compute();
+                byte[] leftResult = left.join();
+                MessageDigest digest = digests.newDigest();
+                digest.update(NODE);
+                digest.update(leftResult);
+                digest.update(rightResult);
+                return digest.digest();
+            } catch (NoSuchAlgorithmException ex) {
+                // Checked before the task was submitted
+                throw new AssertionError(ex);
+            }
+        }
+    }
+
     @Override
     public void hashInto(Consumer<? super Object> digest, boolean deep) {
-        for (Signature tree : children) {
+        for (Signature tree : this) {
             tree.hashInto(digest, deep);
         }
     }
 
     public void add(JavacTask task, TypeElement type, Predicate<? super Element> include, Trees trees) {
         if (include.test(type)) {
-            ClassSignature clazz = new ClassSignature(type);
-            children.add(clazz);
-            clazz.enter((methods, fields) -> {
-                for (Element child : type.getEnclosedElements()) {
-                    if (!include.test(child)) {
-                        continue;
-                    }
-                    switch (child.getKind()) {
-                        case METHOD:
-                        case CONSTRUCTOR:
-                            MethodSignature msig = new MethodSignature((ExecutableElement) child);
-                            drilldown(task, msig, trees, ((ExecutableElement) child));
-                            methods.accept(msig);
-                            break;
-                        case ENUM_CONSTANT:
-                        case FIELD:
-                            fields.accept(new FieldSignature((VariableElement) child));
-                            break;
+            TypeRenderer types = renderer(task);
+            ClassSignature clazz = new ClassSignature(type, types);
+            Set<String> dependencies = new TreeSet<>();
+            Trace.Writer traceWriter = trace == null ? null : trace.open(clazz.name());
+            try {
+                clazz.enter((methods, fields) -> {
+                    for (Element child : type.getEnclosedElements()) {
+                        if (!include.test(child)) {
+                            continue;
+                        }
+                        switch (child.getKind()) {
+                            case METHOD:
+                            case CONSTRUCTOR:
+                                if (cancelled.getAsBoolean()) {
+                                    throw new CancellationException();
+                                }
+                                MethodSignature msig = new MethodSignature((ExecutableElement) child, types);
+                                MethodSignature old = reusable == null ? null
+                                        : reusable.get(clazz.name() + '#' + msig.key());
+                                if (old != null && old.compareTo(msig) == 0) {
+                                    // Nothing its closure read has changed
+                                    msig = old;
+                                    dependencies.addAll(old.dependencies());
+                                } else {
+                                    drilldown(task, msig, trees, ((ExecutableElement) child), types, dependencies,
+                                            traceWriter);
+                                }
+                                methods.accept(msig);
+                                break;
+                            case ENUM_CONSTANT:
+                            case FIELD:
+                                fields.accept(new FieldSignature((VariableElement) child, types));
+                                break;
+                        }
                     }
+                });
+            } finally {
+                if (traceWriter != null) {
+                    traceWriter.close();
                 }
-            });
+            }
+            TreePath path = trees.getPath(type);
+            String sourceFile = path == null ? null
+                    : path.getCompilationUnit().getSourceFile().toUri().toString().intern();
+            dependencies.remove(sourceFile);
+            clazz.source(sourceFile, dependencies);
+            clazz.freeze();
+            if (onClass != null) {
+                onClass.accept(clazz);
+            } else {
+                // Added once complete, so anything spilled is frozen
+                synchronized (combinedHashes) {
+                    combinedHashes.clear();
+                    children.add(clazz);
+                }
+                if (memoryBudget > 0 && retained.addAndGet(clazz.estimatedBytes()) > memoryBudget) {
+                    spill();
+                }
+            }
+        }
+    }
+
+    private void spill() {
+        synchronized (combinedHashes) {
+            if (retained.get() <= memoryBudget) {
+                // Another thread got here first
+                return;
+            }
+            if (spill == null) {
+                spill = new Spill(this);
+            }
+            try {
+                spill.write(children);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            children.clear();
+            retained.set(0);
         }
     }
 
-    private void drilldown(JavacTask task, MethodSignature msig, Trees trees, ExecutableElement method) {
+    /**
+     * Estimate the bytes of heap retained by the class signatures in this
+     * tree which are held in memory, as opposed to having been spilled to
+     * disk because the configured memory budget was exceeded.
+     *
+     * @return An estimate
+     */
+    public long estimatedBytes() {
+        long result = 0;
+        synchronized (combinedHashes) {
+            for (ClassSignature clazz : children) {
+                result += clazz.estimatedBytes();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of classes which were written to disk because the
+     * memory budget was exceeded while building this tree.
+     *
+     * @return A count
+     */
+    public int spilledClasses() {
+        synchronized (combinedHashes) {
+            return spill == null ? 0 : spill.classes();
+        }
+    }
+
+    private void taskFinished(JavacTask task) {
+        synchronized (renderers) {
+            renderers.remove(task);
+        }
+    }
+
+    private TypeRenderer renderer(JavacTask task) {
+        // One per task, since types are cached by identity, and tasks may
+        // run concurrently when sources are partitioned
+        synchronized (renderers) {
+            return renderers.computeIfAbsent(task, t -> new TypeRenderer());
+        }
+    }
+
+    private void drilldown(JavacTask task, MethodSignature msig, Trees trees, ExecutableElement method,
+            TypeRenderer types, Set<String> dependencies, Trace.Writer trace) {
         TreePath pth = trees.getPath(method);
         if (pth == null) {
             // This will happpen with, for example, Enum classes' values() methods
@@ -209,37 +1458,60 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
         }
         msig.enter(sigConsumer -> {
             assert pth.getCompilationUnit() != null : "Comp unit is null";
-            String sig = this.useDirectHash ? runHashDrilldown(pth, task)
-                    : runStringBuilderDrilldown(pth, task);
+            long start = hotspots == null ? 0 : System.nanoTime();
+            MessageDigest digest = drilldownDigest();
+            if (trace != null) {
+                digest = trace.tee(msig.key(), digest);
+            }
+            String sig;
+            Closure closure = new Closure(closureBudget, budgetHits, types);
+            try {
+                // The string builder is only for debugging the text encoding
+                sig = this.useDirectHash || compactTokens ? runHashDrilldown(pth, task, closure, digest)
+                        : runStringBuilderDrilldown(pth, task, closure, digest);
+            } finally {
+                closure.close();
+            }
+            dependencies.addAll(closure.sourceFiles);
+            Set<String> touched = new TreeSet<>(closure.sourceFiles);
+            touched.add(pth.getCompilationUnit().getSourceFile().toUri().toString().intern());
+            msig.dependencies(touched);
+            msig.calls(closure.calls.isEmpty() ? null : closure.calls);
+            if (hotspots != null) {
+                hotspots.add(enclosingType(method).getQualifiedName() + "#" + msig.key(),
+                        closure.nodes, closure.callees, closure.recursions, System.nanoTime() - start);
+            }
             sigConsumer.accept(new CodeSig(sig));
         });
     }
 
-    private String runStringBuilderDrilldown(TreePath pth, JavacTask task) {
-        TV tv = new TV(task);
-        StringBuilder sig = new StringBuilder(2048);
-        tv.scan(pth, new StringBuilderStringConsumer(sig));
+    private static MessageDigest drilldownDigest() {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-512");
-            digest.update(sig.toString().getBytes(UTF_8));
-            return Base64.getUrlEncoder().encodeToString(digest.digest());
+            return DigestFactory.create("SHA-512");
         } catch (NoSuchAlgorithmException ex) {
-            // Would have been thrown early in startup if really unsupported
+            // Every JDK is required to support SHA-512
             throw new AssertionError(ex);
         }
     }
 
-    private String runHashDrilldown(TreePath pth, JavacTask task) {
-        TV tv = new TV(task);
-        try {
-            HashingStringConsumer c = new HashingStringConsumer(MessageDigest.getInstance("SHA-512"));
+    private String runStringBuilderDrilldown(TreePath pth, JavacTask task, Closure closure, MessageDigest digest) {
+        TV tv = new TV(task, closure);
+        StringBuilder sig = new StringBuilder(2048);
+        tv.scan(pth, new StringBuilderStringConsumer(sig));
+        digest.update(sig.toString().getBytes(UTF_8));
+        return Base64.getUrlEncoder().encodeToString(digest.digest());
+    }
+
+    private String runHashDrilldown(TreePath pth, JavacTask task, Closure closure, MessageDigest digest) {
+        TV tv = new TV(task, closure);
+        if (compactTokens) {
+            TokenStringConsumer.Digesting c = new TokenStringConsumer.Digesting(digest);
             tv.scan(pth, c);
             return c.done();
-        } catch (NoSuchAlgorithmException ex) {
-            // Would have been thrown early in startup if really unsupported
-            throw new AssertionError(ex);
         }
-
+        HashingStringConsumer c = new HashingStringConsumer(digest);
+        tv.scan(pth, c);
+        return c.done();
     }
 
     static TypeElement enclosingType(Element el) {
@@ -249,7 +1521,7 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
         return el instanceof TypeElement ? ((TypeElement) el) : null;
     }
 
-    private static final class CodeSig implements Signature {
+    static final class CodeSig implements Signature {
 
         private final CharSequence sb;
 
@@ -257,6 +1529,14 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
             this.sb = sb;
         }
 
+        CharSequence code() {
+            return sb;
+        }
+
+        long estimatedBytes() {
+            return Footprint.OBJECT + Footprint.string(sb);
+        }
+
         @Override
         public void hashInto(Consumer<? super Object> digest, boolean deep) {
             if (!deep) {
@@ -272,36 +1552,198 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
         StringConsumer append(CharSequence seq);
 
         default StringConsumer append(char ch) {
-            return append(new String(new char[]{ch}));
+            return append(String.valueOf(ch));
         }
 
         default StringConsumer append(Object obj) {
             return append(Objects.toString(obj));
         }
+
+        default StringConsumer kind(Tree.Kind kind) {
+            return append(kind.name()).append(' ');
+        }
+
+        /**
+         * Append the result of a FragmentBuilder created by child().
+         *
+         * @param fragment A fragment
+         * @return this
+         */
+        default StringConsumer fragment(Object fragment) {
+            return append(fragment);
+        }
+
+        /**
+         * Create a consumer which collects the closure of a callee using the
+         * same encoding as this one.
+         *
+         * @param scratch Where large fragments may be written
+         * @return A fragment builder
+         */
+        default FragmentBuilder child(Scratch scratch) {
+            return new StringBuilderStringConsumer(new StringBuilder(256));
+        }
+    }
+
+    interface FragmentBuilder extends StringConsumer {
+
+        Object build();
     }
 
     private static final class HashingStringConsumer implements StringConsumer {
 
         private final MessageDigest digest;
+        private final byte[] buffer = new byte[8192];
+        private int pos;
 
         public HashingStringConsumer(MessageDigest digest) {
             this.digest = digest;
         }
 
+        private void flush() {
+            digest.update(buffer, 0, pos);
+            pos = 0;
+        }
+
         @Override
         public StringConsumer append(CharSequence seq) {
-            byte[] bytes = seq.toString().getBytes(UTF_8);
-            digest.update(bytes);
+            int length = seq.length();
+            for (int i = 0; i < length; i++) {
+                if (seq.charAt(i) >= 0x80) {
+                    flush();
+                    digest.update(seq.toString().getBytes(UTF_8));
+                    return this;
+                }
+            }
+            for (int i = 0; i < length; i++) {
+                if (pos == buffer.length) {
+                    flush();
+                }
+                buffer[pos++] = (byte) seq.charAt(i);
+            }
+            return this;
+        }
+
+        @Override
+        public StringConsumer append(char ch) {
+            if (ch >= 0x80) {
+                return append(String.valueOf(ch));
+            }
+            if (pos == buffer.length) {
+                flush();
+            }
+            buffer[pos++] = (byte) ch;
             return this;
         }
 
+        @Override
+        public StringConsumer fragment(Object fragment) {
+            if (fragment instanceof byte[]) {
+                flush();
+                digest.update((byte[]) fragment);
+                return this;
+            } else if (fragment instanceof Scratch.Spilled) {
+                flush();
+                ((Scratch.Spilled) fragment).replay(digest::update);
+                return this;
+            }
+            return append(fragment);
+        }
+
+        @Override
+        public FragmentBuilder child(Scratch scratch) {
+            return new TextFragment(scratch);
+        }
+
         public String done() {
+            flush();
             byte[] result = digest.digest();
             return Base64.getUrlEncoder().encodeToString(result);
         }
     }
 
-    private static final class StringBuilderStringConsumer implements StringConsumer {
+    // Collects the UTF-8 text of a callee's closure for HashingStringConsumer,
+    // the same bytes it would otherwise have encoded from a string
+    private static final class TextFragment implements FragmentBuilder {
+
+        private final Scratch scratch;
+        private byte[] buffer = new byte[256];
+        private int pos;
+        private Scratch.Spilled spilled;
+
+        TextFragment(Scratch scratch) {
+            this.scratch = scratch;
+        }
+
+        private void put(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (pos == buffer.length) {
+                    makeRoom();
+                }
+                int chunk = Math.min(length, buffer.length - pos);
+                System.arraycopy(bytes, offset, buffer, pos, chunk);
+                pos += chunk;
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        private void makeRoom() {
+            if (buffer.length >= Scratch.FRAGMENT_LIMIT) {
+                spilled = scratch.append(spilled, buffer, pos);
+                pos = 0;
+            } else {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        @Override
+        public StringConsumer append(CharSequence seq) {
+            byte[] bytes = seq.toString().getBytes(UTF_8);
+            put(bytes, 0, bytes.length);
+            return this;
+        }
+
+        @Override
+        public StringConsumer append(char ch) {
+            if (ch >= 0x80) {
+                return append(String.valueOf(ch));
+            }
+            if (pos == buffer.length) {
+                makeRoom();
+            }
+            buffer[pos++] = (byte) ch;
+            return this;
+        }
+
+        @Override
+        public StringConsumer fragment(Object fragment) {
+            if (fragment instanceof byte[]) {
+                byte[] bytes = (byte[]) fragment;
+                put(bytes, 0, bytes.length);
+                return this;
+            } else if (fragment instanceof Scratch.Spilled) {
+                ((Scratch.Spilled) fragment).replay(this::put);
+                return this;
+            }
+            return append(fragment);
+        }
+
+        @Override
+        public FragmentBuilder child(Scratch scratch) {
+            return new TextFragment(scratch);
+        }
+
+        @Override
+        public Object build() {
+            if (spilled != null) {
+                return scratch.append(spilled, buffer, pos);
+            }
+            return Arrays.copyOf(buffer, pos);
+        }
+    }
+
+    private static final class StringBuilderStringConsumer implements FragmentBuilder {
 
         private final StringBuilder sb;
 
@@ -314,26 +1756,101 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
             sb.append(seq);
             return this;
         }
+
+        @Override
+        public StringConsumer append(char ch) {
+            sb.append(ch);
+            return this;
+        }
+
+        @Override
+        public Object build() {
+            return sb.toString();
+        }
+    }
+
+    // State shared by all scanners drilling through the closure of a single
+    // public method or constructor
+    private static final class Closure implements AutoCloseable {
+
+        private final Map<String, Object> subs = new HashMap<>();
+        private final Scratch scratch = new Scratch();
+        // Bytes of callee closures cached in subs in memory
+        private long cachedBytes;
+        // When explaining a single member, the node for the callee being
+        // scanned
+        private Explanation.Node explaining;
+        private final ClosureBudget budget;
+        private final AtomicLongArray budgetHits;
+        private final TypeRenderer types;
+        private int nodes;
+        private int callees;
+        private int recursions;
+        // Source files whose code was incorporated
+        private final Set<String> sourceFiles = new HashSet<>();
+        // Methods with source invoked directly by the method being hashed
+        private final Set<String> calls = new TreeSet<>();
+
+        Closure(ClosureBudget budget, AtomicLongArray budgetHits, TypeRenderer types) {
+            this.budget = budget;
+            this.budgetHits = budgetHits;
+            this.types = types;
+        }
+
+        boolean canDescend(int depth) {
+            ClosureBudget.Kind hit = budget.exhausted(depth, nodes, callees);
+            if (hit != null) {
+                budgetHits.incrementAndGet(hit.ordinal());
+                return false;
+            }
+            callees++;
+            return true;
+        }
+
+        void explain(String key, Explanation.Kind kind) {
+            if (explaining != null) {
+                explaining.add(new Explanation.Node(key, kind, null));
+            }
+        }
+
+        Object cache(Object fragment) {
+            if (fragment instanceof byte[]) {
+                byte[] bytes = (byte[]) fragment;
+                if (cachedBytes + bytes.length > Scratch.CACHE_LIMIT) {
+                    return scratch.append(null, bytes, bytes.length);
+                }
+                cachedBytes += bytes.length;
+            }
+            return fragment;
+        }
+
+        @Override
+        public void close() {
+            scratch.close();
+        }
     }
 
     // Scanner which is used to drill through source code
     private static final class TV extends TreePathScanner<Void, StringConsumer> {
 
         private final JavacTask task;
-        private final Map<String, String> subs;
+        private final Map<String, Object> subs;
+        private final Closure closure;
+        private final int depth;
 
         // XXX using a stringbuilder here is much more debuggable, but can
         // be expensive in memory since it concatenates the closure of anything
         // called that the source can be found to.  It would be straightforward
         // to just add it to the hasher / messagedigest as we go.
-        TV(JavacTask task, Map<String, String> subs) {
-            this.subs = subs;
+        TV(JavacTask task, Closure closure, int depth) {
             this.task = task;
+            this.closure = closure;
+            this.subs = closure.subs;
+            this.depth = depth;
         }
 
-        TV(JavacTask task) {
-            this.task = task;
-            this.subs = new HashMap<>();
+        TV(JavacTask task, Closure closure) {
+            this(task, closure, 0);
         }
 
         @Override
@@ -344,6 +1861,7 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
         @Override
         public Void scan(Tree tree, StringConsumer p) {
             if (tree != null) {
+                closure.nodes++;
                 switch (tree.getKind()) {
                     case MODIFIERS:
                     case ANNOTATION:
@@ -366,7 +1884,7 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
                     case PROVIDES:
                         break;
                     default:
-                        p.append(tree.getKind().name()).append(' ');
+                        p.kind(tree.getKind());
 
                 }
             }
@@ -431,14 +1949,34 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
         @Override
         public Void visitNewClass(NewClassTree node, StringConsumer p) {
             p.append(node.getIdentifier()).append(' ');
+            recordCall();
             return super.visitNewClass(node, p);
         }
 
-        private String scanCurrentPathAsElement() {
-            return scanAsElement(getCurrentPath());
+        private void recordCall() {
+            if (depth > 0) {
+                // Calls made by callees are recorded when they are hashed
+                return;
+            }
+            Trees trees = Trees.instance(task);
+            Element el = trees.getElement(getCurrentPath());
+            if (el instanceof ExecutableElement && trees.getTree(el) != null) {
+                List<String> params = new ArrayList<>();
+                for (VariableElement param : ((ExecutableElement) el).getParameters()) {
+                    params.add(closure.types.render(param.asType()));
+                }
+                // Keyed by the declaring type, so a nested class's method is
+                // never confused with a top-level method of the same name
+                closure.calls.add(enclosingType(el).getQualifiedName() + "#"
+                        + MethodSignature.key(el.getSimpleName(), params));
+            }
         }
 
-        private String scanAsElement(TreePath path) {
+        private Object scanCurrentPathAsElement(StringConsumer p) {
+            return scanAsElement(getCurrentPath(), p);
+        }
+
+        private Object scanAsElement(TreePath path, StringConsumer p) {
             Trees trees = Trees.instance(task);
             Element el = trees.getElement(path);
             if (el == null) {
@@ -448,25 +1986,47 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
             TypeElement type = enclosingType(el);
 
             String key = type.getQualifiedName().toString() + '.' + el.getSimpleName();
-            String result = subs.get(key);
+            Object result = subs.get(key);
             if (result != null) {
+                if (result instanceof String && ((String) result).startsWith("<recurse-")) {
+                    closure.recursions++;
+                    closure.explain(key, Explanation.Kind.RECURSIVE);
+                } else {
+                    closure.explain(key, key.equals(result) ? Explanation.Kind.NO_SOURCE : Explanation.Kind.CACHED);
+                }
                 return result;
             }
             Tree treeForEl = trees.getTree(el);
             if (treeForEl == null) {
                 subs.put(key, key);
+                closure.explain(key, Explanation.Kind.NO_SOURCE);
                 return key;
             }
             TreePath newPath = Trees.instance(task).getPath(el);
             if (newPath.equals(getCurrentPath())) {
+                closure.recursions++;
+                closure.explain(key, Explanation.Kind.RECURSIVE);
                 return "<recurse-" + key + ">";
             }
-            TV tv = new TV(task, subs);
+            if (!closure.canDescend(depth + 1)) {
+                // Over budget - hash the name rather than the body, and do not
+                // cache it, since it may be within budget at a shallower depth
+                closure.explain(key, Explanation.Kind.BUDGET);
+                return "<budget-" + key + ">";
+            }
+            // Interned, since the same few are referenced from every method
+            String source = newPath.getCompilationUnit().getSourceFile().toUri().toString().intern();
+            closure.sourceFiles.add(source);
+            Explanation.Node caller = closure.explaining;
+            if (caller != null) {
+                closure.explaining = caller.add(new Explanation.Node(key, Explanation.Kind.SCANNED, source));
+            }
+            TV tv = new TV(task, closure, depth + 1);
             subs.put(key, "<recurse-" + key + ">");
-            StringBuilder sb = new StringBuilder(256);
-            StringConsumer c = new StringBuilderStringConsumer(sb);
+            FragmentBuilder c = p.child(closure.scratch);
             tv.scan(newPath, c);
-            subs.put(key, result = sb.toString());
+            closure.explaining = caller;
+            subs.put(key, result = closure.cache(c.build()));
             return result;
         }
 
@@ -489,16 +2049,17 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
         public Void visitMethodInvocation(MethodInvocationTree node, StringConsumer p) {
             // append the *last* name found, e.g. "foo" for an invocation of in x.bar.foo()
             p.append(new NameFinder().scan(node.getMethodSelect(), null));
-            String sub = scanCurrentPathAsElement();
+            recordCall();
+            Object sub = scanCurrentPathAsElement(p);
             if (sub != null) {
-                p.append(sub).append(' ');
+                p.fragment(sub).append(' ');
             }
             return super.visitMethodInvocation(node, p);
         }
 
         @Override
         public Void visitThrow(ThrowTree node, StringConsumer p) {
-            p.append(scanCurrentPathAsElement()).append(' ');
+            p.fragment(scanCurrentPathAsElement(p)).append(' ');
             return super.visitThrow(node, p);
         }
 
@@ -510,14 +2071,14 @@ public final class SigTree implements Signature, Iterable<ClassSignature> {
 
         @Override
         public Void visitCompoundAssignment(CompoundAssignmentTree node, StringConsumer p) {
-            p.append(scanCurrentPathAsElement()).append(' ');
+            p.fragment(scanCurrentPathAsElement(p)).append(' ');
             return super.visitCompoundAssignment(node, p);
         }
 
         @Override
         public Void visitVariable(VariableTree node, StringConsumer p) {
             Element el = Trees.instance(task).getElement(getCurrentPath());
-            p.append(el.asType()).append(' ');
+            p.append(closure.types.render(el.asType())).append(' ');
             return super.visitVariable(node, p);
         }
 
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.nio.file.Path;
+
+/**
+ * Settings for how a SigTree is built. Setters return this, so they can be
+ * chained.
+ *
+ * @author Tim Boudreau
+ */
+public final class SigTreeConfig {
+
+    private Partitioning partitioning = Partitioning.NONE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private ClosureBudget closureBudget = ClosureBudget.UNLIMITED;
+    private boolean compactTokens = Boolean.getBoolean("sighash.tokens");
+    private boolean lazySourcePath;
+    private boolean hotspots;
+    private long memoryBudget;
+    private Path trace;
+
+    /**
+     * Set how sources are split between javac tasks which are run in
+     * parallel. The resulting tree is the same however it is partitioned.
+     *
+     * @param partitioning The partitioning
+     * @return this
+     */
+    public SigTreeConfig partitioning(Partitioning partitioning) {
+        if (partitioning == null) {
+            throw new IllegalArgumentException("Null partitioning");
+        }
+        this.partitioning = partitioning;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of threads to use for work that can be done in
+     * parallel, such as running javac over partitions.
+     *
+     * @param threads The thread count, &gt; 0
+     * @return this
+     */
+    public SigTreeConfig threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be > 0: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Set limits on how far deep mode follows calls.
+     *
+     * @param budget A budget
+     * @return this
+     */
+    public SigTreeConfig closureBudget(ClosureBudget budget) {
+        if (budget == null) {
+            throw new IllegalArgumentException("Null budget");
+        }
+        this.closureBudget = budget;
+        return this;
+    }
+
+    /**
+     * In deep mode, hash method bodies as a compact binary token stream
+     * rather than as text. This is several times faster, but produces
+     * different deep hashes than the text encoding, so the same setting must
+     * be used for hashes which will be compared. Defaults to the value of
+     * the system property <code>sighash.tokens</code>.
+     *
+     * @param compactTokens Whether to use the token encoding
+     * @return this
+     */
+    public SigTreeConfig compactTokens(boolean compactTokens) {
+        this.compactTokens = compactTokens;
+        return this;
+    }
+
+    /**
+     * Only pass javac the files which declare public types as compilation
+     * units, putting the source roots on the source path, so that other
+     * sources are only loaded and attributed if code being hashed uses them.
+     * The resulting tree is the same as if all sources were compiled, but
+     * large internal packages which nothing public calls cost (almost)
+     * nothing.
+     *
+     * @param lazySourcePath Whether to compile lazily
+     * @return this
+     */
+    public SigTreeConfig lazySourcePath(boolean lazySourcePath) {
+        this.lazySourcePath = lazySourcePath;
+        return this;
+    }
+
+    /**
+     * Record, for each method, the size of its closure and the time spent
+     * hashing it, so that a report of the costliest methods can be obtained
+     * from <code>SigTree.hotspots()</code>.
+     *
+     * @param hotspots Whether to record hotspots
+     * @return this
+     */
+    public SigTreeConfig hotspots(boolean hotspots) {
+        this.hotspots = hotspots;
+        return this;
+    }
+
+    /**
+     * Limit the estimated heap retained by the class signatures being
+     * collected; once exceeded, those in memory are written to temporary
+     * files and read back as needed when the tree is hashed or iterated, so
+     * a large deep-mode run degrades to being slower rather than failing
+     * with an OutOfMemoryError.  This does not bound the memory javac itself
+     * uses; partitioning does that.
+     *
+     * @param bytes The budget in bytes, or 0 for none
+     * @return this
+     */
+    public SigTreeConfig memoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative budget " + bytes);
+        }
+        this.memoryBudget = bytes;
+        return this;
+    }
+
+    /**
+     * In deep mode, write the exact bytes hashed for each method's drilldown
+     * into a file per class in the passed directory, named for the class
+     * with the suffix <code>.trace</code>, as they are hashed. Hashes are
+     * unaffected, so traces from two runs whose deep hashes differ can be
+     * compared to find out why. Methods reused by an incremental update are
+     * not traced.
+     *
+     * @param dir A directory, or null for no tracing
+     * @return this
+     */
+    public SigTreeConfig trace(Path dir) {
+        this.trace = dir;
+        return this;
+    }
+
+    Path trace() {
+        return trace;
+    }
+
+    long memoryBudget() {
+        return memoryBudget;
+    }
+
+    boolean hotspots() {
+        return hotspots;
+    }
+
+    boolean lazySourcePath() {
+        return lazySourcePath;
+    }
+
+    boolean compactTokens() {
+        return compactTokens;
+    }
+
+    ClosureBudget closureBudget() {
+        return closureBudget;
+    }
+
+    Partitioning partitioning() {
+        return partitioning;
+    }
+
+    int threads() {
+        return threads;
+    }
+
+    /**
+     * Ways of splitting sources into independent javac tasks.
+     */
+    public enum Partitioning {
+        /**
+         * Compile everything in a single javac task.
+         */
+        NONE,
+        /**
+         * One javac task per source root (or module, where each module is
+         * its own root).
+         */
+        ROOT,
+        /**
+         * Group packages into as many javac tasks as there are threads,
+         * keeping each package in a single task.
+         */
+        PACKAGE
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.lang.model.element.Modifier;
+
+/**
+ * Helpers for the binary form of saved SigTrees, in which null and empty
+ * collections are distinct, since they hash differently.
+ *
+ * @author Tim Boudreau
+ */
+final class SigTreeIO {
+
+    static final int MAGIC = 0x53475433; // SGT3
+
+    private SigTreeIO() {
+        throw new AssertionError();
+    }
+
+    static void writeString(String s, DataOutput out) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeStrings(Collection<String> strings, DataOutput out) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    static <C extends Collection<String>> C readStrings(DataInput in, C into) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            into.add(in.readUTF());
+        }
+        return into;
+    }
+
+    /**
+     * Read a set of source file URIs, interned, since every method and class
+     * drawing on a file refers to the same few.
+     */
+    static Set<String> readUris(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count <= 0) {
+            return null;
+        }
+        Set<String> result = new TreeSet<>();
+        for (int i = 0; i < count; i++) {
+            result.add(in.readUTF().intern());
+        }
+        return result;
+    }
+
+    static List<String> readStrings(DataInput in) throws IOException {
+        return readStrings(in, new ArrayList<>());
+    }
+
+    static void writeModifiers(Set<Modifier> modifiers, DataOutput out) throws IOException {
+        out.writeInt(modifiers.size());
+        for (Modifier m : modifiers) {
+            out.writeUTF(m.name());
+        }
+    }
+
+    static Set<Modifier> readModifiers(DataInput in) throws IOException {
+        // Javac's modifier sets are EnumSets too, so iteration order, which
+        // affects the hash, is the same
+        Set<Modifier> result = EnumSet.noneOf(Modifier.class);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            result.add(Modifier.valueOf(in.readUTF()));
+        }
+        return result;
+    }
+}
@@ -23,11 +23,20 @@
  */
 package com.mastfrog.sighash;
 
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.Tree;
 import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePath;
 import com.sun.source.util.Trees;
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
@@ -35,13 +44,25 @@ import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.tools.DiagnosticListener;
 import javax.tools.Diagnostic;
@@ -59,12 +80,17 @@ import javax.tools.ToolProvider;
 final class SignatureHashGenerator {
 
     private final Iterable<? extends Path> classpathRoots;
-    private final Iterable<? extends File> outdir = Collections.singleton(
-            new File(System.getProperty("java.io.tmpdir")));
-    private final DiagnosticListener diagnostics = new Diagnostics();
+    private final DiagnosticListener<JavaFileObject> diagnostics = new Diagnostics();
     private final String encoding = "UTF-8";
     private Consumer<Diagnostic> onError = System.out::println;
     private final String cp;
+    private SigTreeConfig config = new SigTreeConfig();
+    private List<MemorySource> memorySources = Collections.emptyList();
+    private BooleanSupplier cancelled = () -> false;
+    private JavaCompiler compiler;
+    private final Map<Path, FileSystem> archives = new HashMap<>();
+    private StandardJavaFileManager sharedFileManager;
+    private Set<Path> only;
 
     SignatureHashGenerator(Iterable<Path> classpathRoots) throws Exception {
         this(null, classpathRoots);
@@ -89,11 +115,92 @@ final class SignatureHashGenerator {
         return this;
     }
 
+    SignatureHashGenerator config(SigTreeConfig config) {
+        this.config = config;
+        return this;
+    }
+
+    SignatureHashGenerator memorySources(Collection<? extends MemorySource> sources) {
+        this.memorySources = new ArrayList<>(sources);
+        this.memorySources.sort((a, b) -> a.path().compareTo(b.path()));
+        return this;
+    }
+
+    /**
+     * Set a test for whether the caller has lost interest in the result,
+     * which is checked between classes; once it returns true, go() throws a
+     * CancellationException.
+     *
+     * @param cancelled The test
+     * @return this
+     */
+    SignatureHashGenerator cancelled(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
+
+    /**
+     * Use the passed compiler and file manager rather than creating new
+     * ones, to avoid the startup cost when hashing many small source trees.
+     * The file manager is not closed, and since it cannot be shared between
+     * concurrent tasks, partitioning is disabled.
+     *
+     * @param compiler A compiler
+     * @param fileManager A file manager from it
+     * @return this
+     */
+    SignatureHashGenerator reuse(JavaCompiler compiler, StandardJavaFileManager fileManager) {
+        this.compiler = compiler;
+        this.sharedFileManager = fileManager;
+        return this;
+    }
+
+    /**
+     * Compile only the passed files, with the source roots on the source
+     * path, rather than everything under the roots.
+     *
+     * @param files Absolute, normalized paths of files
+     * @return this
+     */
+    SignatureHashGenerator only(Set<Path> files) {
+        this.only = files;
+        return this;
+    }
+
+    private void checkCancelled() {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Parsing and attribution are most of the work, so check for
+     * cancellation as javac starts each file in each phase, too.
+     */
+    private void checkCancelledDuring(JavacTask task) {
+        task.addTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent e) {
+                checkCancelled();
+            }
+        });
+    }
+
+    private static RuntimeException unwrapCancellation(RuntimeException ex) {
+        // javac wraps exceptions thrown by listeners
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (t instanceof CancellationException) {
+                return (CancellationException) t;
+            }
+        }
+        return ex;
+    }
+
     private void onError(Diagnostic diag) {
         onError.accept(diag);
     }
 
-    private List<String> options() {
+    private List<String> options(String sourcepath) {
         // Borrowed from NetBeans
         List<String> options = new ArrayList<>(9);
         options.add("-XDide");   // Javac runs inside the IDE
@@ -110,47 +217,397 @@ final class SignatureHashGenerator {
             options.add("-cp");
             options.add(cp);
         }
+        if (sourcepath != null) {
+            options.add("-sourcepath");
+            options.add(sourcepath);
+        }
         return options;
     }
 
     void go(HashBuilder receiver) throws Exception {
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try {
+            generate(receiver);
+        } finally {
+            closeArchives();
+        }
+    }
 
-        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.getDefault(),
-                Charset.forName(encoding));
-        fileManager.setLocation(StandardLocation.CLASS_OUTPUT, outdir);
-        Iterable<? extends JavaFileObject> toCompile = findSources(fileManager);
+    private void generate(HashBuilder receiver) throws Exception {
+        JavaCompiler compiler = this.compiler == null ? ToolProvider.getSystemJavaCompiler() : this.compiler;
+        Map<String, List<Source>> sources = null;
+        if (only != null) {
+            // Resolved directly, rather than by walking every root, so the
+            // cost depends on the number of files rather than the tree size
+            List<Source> files = new ArrayList<>();
+            for (Path root : classpathRoots) {
+                Path dir = sourceRoot(root).toAbsolutePath().normalize();
+                List<Path> under = new ArrayList<>();
+                for (Path file : only) {
+                    if (file.getFileSystem() == dir.getFileSystem() && file.startsWith(dir)
+                            && file.getFileName().toString().endsWith(".java") && Files.isRegularFile(file)) {
+                        under.add(file);
+                    }
+                }
+                Collections.sort(under);
+                for (Path file : under) {
+                    files.add(new Source(dir, file));
+                }
+            }
+            if (!files.isEmpty()) {
+                goPartitioned(compiler, Collections.singletonList(files), receiver);
+            }
+            return;
+        }
+        if (config.lazySourcePath()) {
+            sources = declaringPublicTypes(compiler, findSources());
+        }
+        if (config.partitioning() != SigTreeConfig.Partitioning.NONE && config.threads() > 1
+                && sharedFileManager == null) {
+            if (sources == null) {
+                sources = findSources();
+            }
+            List<List<Source>> partitions = partition(sources);
+            if (partitions.size() > 1) {
+                goPartitioned(compiler, partitions, receiver);
+                return;
+            }
+        }
+        if (sources != null) {
+            List<Source> all = new ArrayList<>();
+            for (List<Source> files : sources.values()) {
+                all.addAll(files);
+            }
+            goPartitioned(compiler, Collections.singletonList(all), receiver);
+            return;
+        }
+        MemoryFileManager fileManager = fileManager(compiler);
+        List<JavaFileObject> toCompile = new ArrayList<>();
+        for (List<Source> files : findSources().values()) {
+            for (Source src : files) {
+                toCompile.add(src.open(fileManager.standard()));
+            }
+        }
 
         CompilationTask task = compiler.getTask(null,
-                fileManager, diagnostics, options(), null, toCompile);
+                fileManager, diagnostics, options(null), null, toCompile);
+
+        parse((JavacTask) task, receiver, null);
+    }
+
+    private MemoryFileManager fileManager(JavaCompiler compiler) throws IOException {
+        if (sharedFileManager != null) {
+            // Javac sets these from the options of the last task it ran
+            // with the file manager; go back to the defaults
+            sharedFileManager.setLocation(StandardLocation.CLASS_PATH, null);
+            sharedFileManager.setLocation(StandardLocation.SOURCE_PATH, null);
+            return new MemoryFileManager(sharedFileManager, memorySources, false);
+        }
+        return new MemoryFileManager(compiler.getStandardFileManager(diagnostics, Locale.getDefault(),
+                Charset.forName(encoding)), memorySources);
+    }
+
+    /**
+     * Runs one javac task per partition, each on its own thread, with all of
+     * the source roots on the source path so that anything outside the
+     * partition can still be resolved (and, in deep mode, drilled into) as it
+     * would be by a single task.
+     */
+    private void goPartitioned(JavaCompiler compiler, List<List<Source>> partitions, HashBuilder receiver) throws Exception {
+        StringBuilder sourcepath = new StringBuilder();
+        for (Path root : classpathRoots) {
+            if (sourcepath.length() > 0) {
+                sourcepath.append(File.pathSeparatorChar);
+            }
+            sourcepath.append(root.toAbsolutePath());
+        }
+        List<String> options = options(sourcepath.length() == 0 ? null : sourcepath.toString());
+        ExecutorService threadPool = Executors.newFixedThreadPool(Math.min(config.threads(), partitions.size()));
+        try {
+            List<Future<Void>> futures = new ArrayList<>(partitions.size());
+            for (List<Source> partition : partitions) {
+                futures.add(threadPool.submit(() -> {
+                    MemoryFileManager fileManager = fileManager(compiler);
+                    try {
+                        Set<URI> members = new HashSet<>();
+                        List<JavaFileObject> toCompile = new ArrayList<>(partition.size());
+                        for (Source src : partition) {
+                            JavaFileObject fo = src.open(fileManager.standard());
+                            toCompile.add(fo);
+                            members.add(fo.toUri());
+                        }
+                        CompilationTask task = compiler.getTask(null,
+                                fileManager, diagnostics, options, null, toCompile);
+                        parse((JavacTask) task, receiver, members);
+                    } finally {
+                        fileManager.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Filters the sources down to those which declare a public (or
+     * protected) top-level type (and module-info), which are the only ones whose classes can be
+     * part of a SigTree; javac will find any others it needs on the source
+     * path, and only attribute those that code being hashed actually uses.
+     * This requires a parse of every file, but parsing is cheap next to
+     * attribution.
+     */
+    private Map<String, List<Source>> declaringPublicTypes(JavaCompiler compiler, Map<String, List<Source>> sources) throws IOException {
+        MemoryFileManager fileManager = fileManager(compiler);
+        try {
+            Map<URI, Source> sourceForUri = new HashMap<>();
+            List<JavaFileObject> toParse = new ArrayList<>();
+            for (List<Source> files : sources.values()) {
+                for (Source src : files) {
+                    JavaFileObject fo = src.open(fileManager.standard());
+                    sourceForUri.put(fo.toUri(), src);
+                    toParse.add(fo);
+                }
+            }
+            // Syntax errors in files that are included will be reported by
+            // the real compile
+            JavacTask task = (JavacTask) compiler.getTask(null, fileManager, diag -> {
+            }, options(null), null, toParse);
+            checkCancelledDuring(task);
+            Iterable<? extends CompilationUnitTree> units;
+            try {
+                units = task.parse();
+            } catch (RuntimeException ex) {
+                throw unwrapCancellation(ex);
+            }
+            Set<Source> include = new HashSet<>();
+            for (CompilationUnitTree unit : units) {
+                Source src = sourceForUri.get(unit.getSourceFile().toUri());
+                if (src == null) {
+                    continue;
+                }
+                if (src.isModuleInfo()) {
+                    include.add(src);
+                    continue;
+                }
+                for (Tree type : unit.getTypeDecls()) {
+                    // As SigTree's predicate; top-level types cannot legally
+                    // be protected, but a file which claims one is kept
+                    if (type instanceof ClassTree && isApi(((ClassTree) type).getModifiers().getFlags())) {
+                        include.add(src);
+                        break;
+                    }
+                }
+            }
+            Map<String, List<Source>> result = new LinkedHashMap<>();
+            for (Map.Entry<String, List<Source>> e : sources.entrySet()) {
+                List<Source> files = new ArrayList<>();
+                for (Source src : e.getValue()) {
+                    if (include.contains(src)) {
+                        files.add(src);
+                    }
+                }
+                result.put(e.getKey(), files);
+            }
+            return result;
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    private static boolean isApi(Set<Modifier> modifiers) {
+        return modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.PROTECTED);
+    }
 
-        parse((JavacTask) task, receiver);
+    /**
+     * Split the source files into partitions according to the configured
+     * partitioning; partitions are built in a deterministic order, though
+     * the resulting tree does not depend on it.
+     */
+    private List<List<Source>> partition(Map<String, List<Source>> sourcesByRoot) {
+        List<List<Source>> result = new ArrayList<>();
+        switch (config.partitioning()) {
+            case ROOT:
+                for (List<Source> sources : sourcesByRoot.values()) {
+                    if (!sources.isEmpty()) {
+                        result.add(sources);
+                    }
+                }
+                break;
+            case PACKAGE:
+                // Keep each package together, since package siblings tend to
+                // call each other, and greedily assign the largest packages
+                // first to whichever partition is currently smallest
+                Map<String, List<Source>> byPackage = new TreeMap<>();
+                for (List<Source> sources : sourcesByRoot.values()) {
+                    for (Source src : sources) {
+                        byPackage.computeIfAbsent(src.packagePath, p -> new ArrayList<>()).add(src);
+                    }
+                }
+                List<List<Source>> packages = new ArrayList<>(byPackage.values());
+                packages.sort((a, b) -> Integer.compare(b.size(), a.size()));
+                int count = Math.min(config.threads(), packages.size());
+                for (int i = 0; i < count; i++) {
+                    result.add(new ArrayList<>());
+                }
+                for (List<Source> pkg : packages) {
+                    List<Source> smallest = result.get(0);
+                    for (List<Source> candidate : result) {
+                        if (candidate.size() < smallest.size()) {
+                            smallest = candidate;
+                        }
+                    }
+                    smallest.addAll(pkg);
+                }
+                break;
+            default:
+                throw new AssertionError(config.partitioning());
+        }
+        return result;
     }
 
-    private void parse(JavacTask task, HashBuilder receiver) throws Exception {
+    private void parse(JavacTask task, HashBuilder receiver, Set<URI> members) throws Exception {
         Trees trees = Trees.instance(task);
         List<Element> els = new ArrayList<>();
-        for (Element el : task.analyze()) {
-            switch (el.getKind()) {
-                case CLASS:
-                case ENUM:
-                case INTERFACE:
-                    els.add(el);
-                    break;
+        checkCancelledDuring(task);
+        try {
+            Iterable<? extends Element> analyzed;
+            try {
+                analyzed = task.analyze();
+            } catch (RuntimeException ex) {
+                throw unwrapCancellation(ex);
             }
+            for (Element el : analyzed) {
+                switch (el.getKind()) {
+                    case CLASS:
+                    case ENUM:
+                    case INTERFACE:
+                        if (members != null && !isMember(el, trees, members)) {
+                            // Loaded from the source path, and belongs to
+                            // another partition
+                            break;
+                        }
+                        els.add(el);
+                        break;
+                }
+            }
+            for (Element el : els) {
+                checkCancelled();
+                handleOneClass(task, trees, (TypeElement) el, receiver);
+            }
+        } finally {
+            receiver.taskFinished(task);
         }
-        for (Element el : els) {
-            handleOneClass(task, trees, (TypeElement) el, receiver);
-        }
+    }
+
+    private static boolean isMember(Element el, Trees trees, Set<URI> members) {
+        TreePath path = trees.getPath(el);
+        return path != null && members.contains(path.getCompilationUnit().getSourceFile().toUri());
     }
 
     private void handleOneClass(JavacTask task, Trees trees, TypeElement type, HashBuilder receiver) throws Exception {
         receiver.enterClass(task, type.asType(), type, trees);
     }
 
-    private Iterable<JavaFileObject> findSources(final StandardJavaFileManager mgr) throws IOException {
-        Set<JavaFileObject> paths = new HashSet<>();
-        for (Path classpathRoot : classpathRoots) {
+    /**
+     * Find the file under the source roots which declares a class, which
+     * may be nested, without walking the roots.
+     *
+     * @param className A qualified class name
+     * @return An absolute, normalized path, or null
+     */
+    Path locate(String className) throws IOException {
+        String[] parts = className.split("\\.");
+        // Try the longest candidate first, since a package and a class may
+        // share a name
+        for (int i = parts.length; i > 0; i--) {
+            for (Path root : classpathRoots) {
+                Path file = sourceRoot(root);
+                for (int j = 0; j < i - 1; j++) {
+                    file = file.resolve(parts[j]);
+                }
+                file = file.resolve(parts[i - 1] + ".java");
+                if (Files.isRegularFile(file)) {
+                    return file.toAbsolutePath().normalize();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collect the sources to compile, keyed by source root; in-memory sources
+     * are grouped under their own pseudo-root.
+     */
+    private Map<String, List<Source>> findSources() throws IOException {
+        Map<String, List<Source>> result = new LinkedHashMap<>();
+        for (Map.Entry<Path, List<Path>> e : findSourcePaths().entrySet()) {
+            List<Source> sources = new ArrayList<>(e.getValue().size());
+            for (Path file : e.getValue()) {
+                sources.add(new Source(e.getKey(), file));
+            }
+            // Zip filesystem roots all print as "/"
+            result.put(e.getKey().toUri().toString(), sources);
+        }
+        if (!memorySources.isEmpty()) {
+            List<Source> sources = new ArrayList<>(memorySources.size());
+            for (MemorySource src : memorySources) {
+                sources.add(new Source(src));
+            }
+            result.put("mem:", sources);
+        }
+        return result;
+    }
+
+    static boolean isArchive(Path path) {
+        String name = path.getFileName() == null ? "" : path.getFileName().toString().toLowerCase(Locale.US);
+        return (name.endsWith(".jar") || name.endsWith(".zip")) && Files.isRegularFile(path);
+    }
+
+    /**
+     * Get the directory to walk for sources under a root, which for a jar or
+     * zip file is the root of a zip filesystem over it, so sources are read
+     * in place rather than extracted.
+     */
+    private Path sourceRoot(Path root) throws IOException {
+        if (!isArchive(root)) {
+            return root;
+        }
+        synchronized (archives) {
+            FileSystem fs = archives.get(root);
+            if (fs == null) {
+                fs = FileSystems.newFileSystem(root, (ClassLoader) null);
+                archives.put(root, fs);
+            }
+            return fs.getRootDirectories().iterator().next();
+        }
+    }
+
+    private void closeArchives() throws IOException {
+        synchronized (archives) {
+            for (FileSystem fs : archives.values()) {
+                fs.close();
+            }
+            archives.clear();
+        }
+    }
+
+    private Map<Path, List<Path>> findSourcePaths() throws IOException {
+        Map<Path, List<Path>> result = new LinkedHashMap<>();
+        for (Path root : classpathRoots) {
+            Path classpathRoot = sourceRoot(root);
+            List<Path> paths = new ArrayList<>();
+            result.put(classpathRoot, paths);
             Files.walkFileTree(classpathRoot, new FileVisitor<Path>() {
                 @Override
                 public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
@@ -160,9 +617,7 @@ final class SignatureHashGenerator {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                     if (file.getFileName().toString().endsWith(".java")) {
-                        for (JavaFileObject fo : mgr.getJavaFileObjects(file.toFile())) {
-                            paths.add(fo);
-                        }
+                        paths.add(file);
                     }
                     return FileVisitResult.CONTINUE;
                 }
@@ -183,14 +638,51 @@ final class SignatureHashGenerator {
                     return FileVisitResult.CONTINUE;
                 }
             });
+            Collections.sort(paths);
+        }
+        return result;
+    }
+
+    /**
+     * A source file either on disk under one of the roots, or in memory.
+     */
+    private static final class Source {
+
+        private final Path file;
+        private final MemorySource memory;
+        private final String packagePath;
+
+        Source(Path root, Path file) {
+            this.file = file;
+            this.memory = null;
+            Path parent = root.relativize(file).getParent();
+            this.packagePath = parent == null ? "" : parent.toString();
+        }
+
+        Source(MemorySource memory) {
+            this.file = null;
+            this.memory = memory;
+            this.packagePath = memory.packageName().replace('.', File.separatorChar);
+        }
+
+        boolean isModuleInfo() {
+            return memory == null
+                    ? "module-info.java".equals(file.getFileName().toString())
+                    : "module-info.java".equals(memory.path());
+        }
+
+        JavaFileObject open(StandardJavaFileManager fileManager) {
+            if (memory != null) {
+                return memory;
+            }
+            return fileManager.getJavaFileObjects(file).iterator().next();
         }
-        return paths;
     }
 
-    final class Diagnostics implements DiagnosticListener {
+    final class Diagnostics implements DiagnosticListener<JavaFileObject> {
 
         @Override
-        public void report(Diagnostic diagnostic) {
+        public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
             onError(diagnostic);
         }
     }
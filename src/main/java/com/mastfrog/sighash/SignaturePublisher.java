@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Publishes signatures as they are produced, without building a SigTree:
+ * each class is published once complete, followed by its fields and methods
+ * in hash order.  Each subscription runs javac afresh on the executor, and
+ * production blocks whenever the subscriber has no outstanding demand, so a
+ * slow subscriber throttles javac rather than causing the tree to be
+ * buffered; cancelling the subscription stops javac at the next file, class
+ * or method.
+ *
+ * @author Tim Boudreau
+ */
+public final class SignaturePublisher implements Flow.Publisher<Signature> {
+
+    private final String cp;
+    private final SigTreeConfig config;
+    private final Executor executor;
+    private final Collection<? extends MemorySource> sources;
+    private final Path[] paths;
+
+    SignaturePublisher(String cp, SigTreeConfig config, Executor executor,
+            Collection<? extends MemorySource> sources, Path... paths) {
+        this.cp = cp;
+        this.config = config;
+        this.executor = executor;
+        this.sources = sources;
+        this.paths = paths;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Signature> subscriber) {
+        SignatureSubscription sub = new SignatureSubscription(subscriber);
+        subscriber.onSubscribe(sub);
+        try {
+            executor.execute(sub::run);
+        } catch (RejectedExecutionException ex) {
+            subscriber.onError(ex);
+        }
+    }
+
+    private final class SignatureSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super Signature> subscriber;
+        // Held while publishing a class and its members, so partitions
+        // running concurrently do not interleave
+        private final Object publishLock = new Object();
+        private long demand;
+        private boolean cancelled;
+        private Throwable error;
+
+        SignatureSubscription(Flow.Subscriber<? super Signature> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request " + n);
+                cancelled = true;
+            } else {
+                demand += n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void awaitDemand() {
+            while (demand == 0 && !cancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                }
+            }
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+        }
+
+        private void emit(Signature sig) {
+            awaitDemand();
+            try {
+                subscriber.onNext(sig);
+            } catch (RuntimeException | Error ex) {
+                // Reactive Streams 2.13 - a subscriber which throws is
+                // considered to have cancelled, and is not sent onError
+                cancel();
+                throw new CancellationException();
+            }
+        }
+
+        void publish(ClassSignature clazz) {
+            synchronized (publishLock) {
+                emit(clazz);
+                for (FieldSignature f : clazz.fields()) {
+                    emit(f);
+                }
+                for (MethodSignature m : clazz.methods()) {
+                    emit(m);
+                }
+            }
+        }
+
+        void run() {
+            try {
+                SigTree.publish(new SignatureHashGenerator(cp, paths).memorySources(sources),
+                        config, this::isCancelled, this::publish);
+            } catch (Throwable t) {
+                Throwable err;
+                boolean wasCancelled;
+                synchronized (this) {
+                    err = error;
+                    wasCancelled = cancelled;
+                }
+                // Once cancelled, only a bad request is reported
+                if (!wasCancelled) {
+                    subscriber.onError(t);
+                } else if (err != null) {
+                    subscriber.onError(err);
+                }
+                return;
+            }
+            if (!isCancelled()) {
+                subscriber.onComplete();
+            }
+        }
+    }
+}
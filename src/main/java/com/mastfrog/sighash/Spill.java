@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Class signatures written out of memory once a tree exceeds its memory
+ * budget, as sorted runs in temporary files which are read back, merged in
+ * order, each time the tree is iterated. Once there are too many runs they
+ * are merged into one, so iterating never reads from more than a handful of
+ * files. The files are deleted when the tree that owns them is garbage
+ * collected, or on exit.
+ *
+ * @author Tim Boudreau
+ */
+final class Spill {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    // The runs of every live spill, deleted at exit if still present; unlike
+    // File.deleteOnExit(), entries are dropped once their files are deleted
+    private static final Set<List<Path>> LIVE = Collections.newSetFromMap(new IdentityHashMap<>());
+    private static final int MAX_RUNS = 16;
+    private static final int CHUNK = 65536;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<Integer> counts = new ArrayList<>();
+    private int classes;
+
+    Spill(Object owner) {
+        List<Path> files = runs;
+        synchronized (LIVE) {
+            LIVE.add(files);
+        }
+        CLEANER.register(owner, () -> {
+            synchronized (LIVE) {
+                LIVE.remove(files);
+            }
+            deleteAll(files);
+        });
+    }
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (LIVE) {
+                for (List<Path> files : LIVE) {
+                    deleteAll(files);
+                }
+            }
+        }, "sighash-spill-cleanup"));
+    }
+
+    private static void deleteAll(List<Path> files) {
+        synchronized (files) {
+            for (Path file : files) {
+                delete(file);
+            }
+            files.clear();
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            // Nothing more we can do; it is in the temp dir
+        }
+    }
+
+    /**
+     * Write a run of classes, which must be in sorted order and frozen.
+     */
+    void write(Collection<ClassSignature> sorted) throws IOException {
+        Path file = Files.createTempFile("sighash-", ".spill");
+        try {
+            writeRun(sorted.iterator(), file);
+        } catch (IOException | RuntimeException ex) {
+            delete(file);
+            throw ex;
+        }
+        synchronized (runs) {
+            runs.add(file);
+            counts.add(sorted.size());
+            classes += sorted.size();
+            if (runs.size() >= MAX_RUNS) {
+                compact();
+            }
+        }
+    }
+
+    private static int writeRun(Iterator<ClassSignature> sorted, Path file) throws IOException {
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), CHUNK))) {
+            while (sorted.hasNext()) {
+                sorted.next().write(out);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Merge all runs into one, so the number of runs merged when iterating
+     * stays bounded however many times the budget is exceeded.
+     */
+    private void compact() throws IOException {
+        Path file = Files.createTempFile("sighash-", ".spill");
+        int count;
+        try {
+            count = writeRun(iterator(Collections.emptyList()), file);
+        } catch (IOException | RuntimeException ex) {
+            delete(file);
+            throw ex;
+        }
+        for (Path old : runs) {
+            delete(old);
+        }
+        runs.clear();
+        counts.clear();
+        runs.add(file);
+        counts.add(count);
+    }
+
+    int classes() {
+        synchronized (runs) {
+            return classes;
+        }
+    }
+
+    int runs() {
+        synchronized (runs) {
+            return runs.size();
+        }
+    }
+
+    /**
+     * Merge the spilled runs with the classes still in memory, reading one
+     * class per run at a time.
+     */
+    Iterator<ClassSignature> iterator(Collection<ClassSignature> inMemory) {
+        List<Iterator<ClassSignature>> sources = new ArrayList<>();
+        synchronized (runs) {
+            for (int i = 0; i < runs.size(); i++) {
+                sources.add(new RunIterator(runs.get(i), counts.get(i)));
+            }
+        }
+        sources.add(new ArrayList<>(inMemory).iterator());
+        return new MergeIterator(sources);
+    }
+
+    /**
+     * Reads a run a chunk at a time, reopening the file at the offset it
+     * left off at, so no file is held open between calls and an iterator
+     * which is abandoned part way through leaks nothing.
+     */
+    private static final class RunIterator implements Iterator<ClassSignature> {
+
+        private final Path file;
+        private final ArrayDeque<ClassSignature> buffer = new ArrayDeque<>();
+        private int remaining;
+        private long offset;
+
+        RunIterator(Path file, int count) {
+            this.file = file;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public ClassSignature next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            if (buffer.isEmpty()) {
+                try {
+                    fill();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            remaining--;
+            return buffer.poll();
+        }
+
+        private void fill() throws IOException {
+            try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+                channel.position(offset);
+                CountingInputStream counter = new CountingInputStream(
+                        new BufferedInputStream(Channels.newInputStream(channel), CHUNK));
+                DataInputStream in = new DataInputStream(counter);
+                while (buffer.size() < remaining && (buffer.isEmpty() || counter.count < CHUNK)) {
+                    buffer.add(ClassSignature.read(in));
+                }
+                offset += counter.count;
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            count += result;
+            return result;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static final class MergeIterator implements Iterator<ClassSignature> {
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+        private ClassSignature last;
+
+        MergeIterator(List<Iterator<ClassSignature>> sources) {
+            for (Iterator<ClassSignature> source : sources) {
+                if (source.hasNext()) {
+                    heads.add(new Head(source.next(), source));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            // A class seen in more than one run is only returned once, as
+            // the TreeSet it came from would
+            while (!heads.isEmpty() && last != null && heads.peek().clazz.compareTo(last) == 0) {
+                advance();
+            }
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public ClassSignature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return last = advance();
+        }
+
+        private ClassSignature advance() {
+            Head head = heads.poll();
+            if (head.source.hasNext()) {
+                heads.add(new Head(head.source.next(), head.source));
+            }
+            return head.clazz;
+        }
+    }
+
+    private static final class Head implements Comparable<Head> {
+
+        private final ClassSignature clazz;
+        private final Iterator<ClassSignature> source;
+
+        Head(ClassSignature clazz, Iterator<ClassSignature> source) {
+            this.clazz = clazz;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo(Head o) {
+            return clazz.compareTo(o.clazz);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import com.mastfrog.sighash.SigTree.FragmentBuilder;
+import com.mastfrog.sighash.SigTree.StringConsumer;
+import com.sun.source.tree.Tree;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * Compact encoding of the deep drilldown stream: tree kinds are written as
+ * single bytes, and text as a marker byte, a varint length and UTF-8 bytes,
+ * into a reusable buffer which is flushed in blocks, rather than converting
+ * every element to a string and then to a new byte array. Since text is
+ * length-prefixed, the space delimiters the text encoding uses are omitted.
+ *
+ * @author Tim Boudreau
+ */
+abstract class TokenStringConsumer implements StringConsumer {
+
+    // Codes for tree kinds must not change between JDKs, but ordinals do
+    // as new kinds are added in the middle of the enum, so the code for each
+    // kind is its position in this list, which must only ever be appended to;
+    // kinds not in the list are written as text
+    private static final String[] KIND_CODES = {
+        "ANNOTATED_TYPE", "ANNOTATION", "TYPE_ANNOTATION", "ARRAY_ACCESS",
+        "ARRAY_TYPE", "ASSERT", "ASSIGNMENT", "BLOCK",
+        "BREAK", "CASE", "CATCH", "CLASS",
+        "COMPILATION_UNIT", "CONDITIONAL_EXPRESSION", "CONTINUE", "DO_WHILE_LOOP",
+        "ENHANCED_FOR_LOOP", "EXPRESSION_STATEMENT", "MEMBER_SELECT", "MEMBER_REFERENCE",
+        "FOR_LOOP", "IDENTIFIER", "IF", "IMPORT",
+        "INSTANCE_OF", "LABELED_STATEMENT", "METHOD", "METHOD_INVOCATION",
+        "MODIFIERS", "NEW_ARRAY", "NEW_CLASS", "LAMBDA_EXPRESSION",
+        "PACKAGE", "PARENTHESIZED", "BINDING_PATTERN", "GUARDED_PATTERN",
+        "PARENTHESIZED_PATTERN", "DEFAULT_CASE_LABEL", "PRIMITIVE_TYPE", "RETURN",
+        "EMPTY_STATEMENT", "SWITCH", "SWITCH_EXPRESSION", "SYNCHRONIZED",
+        "THROW", "TRY", "PARAMETERIZED_TYPE", "UNION_TYPE",
+        "INTERSECTION_TYPE", "TYPE_CAST", "TYPE_PARAMETER", "VARIABLE",
+        "WHILE_LOOP", "POSTFIX_INCREMENT", "POSTFIX_DECREMENT", "PREFIX_INCREMENT",
+        "PREFIX_DECREMENT", "UNARY_PLUS", "UNARY_MINUS", "BITWISE_COMPLEMENT",
+        "LOGICAL_COMPLEMENT", "MULTIPLY", "DIVIDE", "REMAINDER",
+        "PLUS", "MINUS", "LEFT_SHIFT", "RIGHT_SHIFT",
+        "UNSIGNED_RIGHT_SHIFT", "LESS_THAN", "GREATER_THAN", "LESS_THAN_EQUAL",
+        "GREATER_THAN_EQUAL", "EQUAL_TO", "NOT_EQUAL_TO", "AND",
+        "XOR", "OR", "CONDITIONAL_AND", "CONDITIONAL_OR",
+        "MULTIPLY_ASSIGNMENT", "DIVIDE_ASSIGNMENT", "REMAINDER_ASSIGNMENT", "PLUS_ASSIGNMENT",
+        "MINUS_ASSIGNMENT", "LEFT_SHIFT_ASSIGNMENT", "RIGHT_SHIFT_ASSIGNMENT", "UNSIGNED_RIGHT_SHIFT_ASSIGNMENT",
+        "AND_ASSIGNMENT", "XOR_ASSIGNMENT", "OR_ASSIGNMENT", "INT_LITERAL",
+        "LONG_LITERAL", "FLOAT_LITERAL", "DOUBLE_LITERAL", "BOOLEAN_LITERAL",
+        "CHAR_LITERAL", "STRING_LITERAL", "NULL_LITERAL", "UNBOUNDED_WILDCARD",
+        "EXTENDS_WILDCARD", "SUPER_WILDCARD", "ERRONEOUS", "INTERFACE",
+        "ENUM", "ANNOTATION_TYPE", "MODULE", "EXPORTS",
+        "OPENS", "PROVIDES", "RECORD", "REQUIRES",
+        "USES", "OTHER", "YIELD"
+    };
+    private static final byte[] KIND_BYTES = new byte[Tree.Kind.values().length];
+    static final byte TEXT = 0;
+    protected byte[] buffer;
+    protected int pos;
+
+    static {
+        assert KIND_CODES.length < 255;
+        for (int i = 0; i < KIND_CODES.length; i++) {
+            try {
+                KIND_BYTES[Tree.Kind.valueOf(KIND_CODES[i]).ordinal()] = (byte) (i + 1);
+            } catch (IllegalArgumentException ex) {
+                // Not present in this JDK - can't be encountered
+            }
+        }
+    }
+
+    TokenStringConsumer(int initialSize) {
+        buffer = new byte[initialSize];
+    }
+
+    /**
+     * Called when there are fewer than the passed number of bytes free in
+     * the buffer; must either empty or enlarge the buffer.
+     *
+     * @param needed The number of bytes needed
+     */
+    protected abstract void makeRoom(int needed);
+
+    private void ensure(int bytes) {
+        if (pos + bytes > buffer.length) {
+            makeRoom(bytes);
+        }
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buffer[pos++] = b;
+    }
+
+    private void putVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+    }
+
+    private void putBytes(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (pos == buffer.length) {
+                makeRoom(1);
+            }
+            int chunk = Math.min(length, buffer.length - pos);
+            System.arraycopy(bytes, offset, buffer, pos, chunk);
+            pos += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public StringConsumer append(CharSequence seq) {
+        int length = seq.length();
+        for (int i = 0; i < length; i++) {
+            if (seq.charAt(i) >= 0x80) {
+                byte[] bytes = seq.toString().getBytes(UTF_8);
+                put(TEXT);
+                putVarint(bytes.length);
+                putBytes(bytes, 0, bytes.length);
+                return this;
+            }
+        }
+        put(TEXT);
+        putVarint(length);
+        for (int i = 0; i < length;) {
+            if (pos == buffer.length) {
+                makeRoom(1);
+            }
+            int chunk = Math.min(length - i, buffer.length - pos);
+            for (int end = i + chunk; i < end; i++) {
+                buffer[pos++] = (byte) seq.charAt(i);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public StringConsumer append(char ch) {
+        if (ch == ' ') {
+            // Tokens are self-delimiting
+            return this;
+        } else if (ch < 0x80) {
+            ensure(3);
+            buffer[pos++] = TEXT;
+            buffer[pos++] = 1;
+            buffer[pos++] = (byte) ch;
+            return this;
+        }
+        return append(String.valueOf(ch));
+    }
+
+    @Override
+    public StringConsumer append(Object obj) {
+        return append(Objects.toString(obj));
+    }
+
+    @Override
+    public StringConsumer kind(Tree.Kind kind) {
+        byte code = KIND_BYTES[kind.ordinal()];
+        if (code == 0) {
+            return append(kind.name());
+        }
+        put(code);
+        return this;
+    }
+
+    @Override
+    public StringConsumer fragment(Object fragment) {
+        if (fragment instanceof byte[]) {
+            byte[] bytes = (byte[]) fragment;
+            putBytes(bytes, 0, bytes.length);
+            return this;
+        } else if (fragment instanceof Scratch.Spilled) {
+            ((Scratch.Spilled) fragment).replay(this::putBytes);
+            return this;
+        }
+        return append(Objects.toString(fragment));
+    }
+
+    @Override
+    public FragmentBuilder child(Scratch scratch) {
+        return new Fragment(scratch);
+    }
+
+    /**
+     * Writes tokens to a digest in blocks.
+     */
+    static final class Digesting extends TokenStringConsumer {
+
+        private final MessageDigest digest;
+
+        Digesting(MessageDigest digest) {
+            super(8192);
+            this.digest = digest;
+        }
+
+        @Override
+        protected void makeRoom(int needed) {
+            digest.update(buffer, 0, pos);
+            pos = 0;
+        }
+
+        String done() {
+            makeRoom(0);
+            return Base64.getUrlEncoder().encodeToString(digest.digest());
+        }
+    }
+
+    /**
+     * Collects the tokens for the closure of a callee, so they can be cached
+     * and spliced into the stream of each caller; once large, they are
+     * written to the scratch file as they are collected.
+     */
+    static final class Fragment extends TokenStringConsumer implements FragmentBuilder {
+
+        private final Scratch scratch;
+        private Scratch.Spilled spilled;
+
+        Fragment(Scratch scratch) {
+            super(256);
+            this.scratch = scratch;
+        }
+
+        @Override
+        protected void makeRoom(int needed) {
+            if (buffer.length >= Scratch.FRAGMENT_LIMIT) {
+                spilled = scratch.append(spilled, buffer, pos);
+                pos = 0;
+            } else {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, pos + needed));
+            }
+        }
+
+        @Override
+        public Object build() {
+            if (spilled != null) {
+                return scratch.append(spilled, buffer, pos);
+            }
+            return Arrays.copyOf(buffer, pos);
+        }
+    }
+}
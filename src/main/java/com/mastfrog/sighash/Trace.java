@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.security.MessageDigest;
+
+/**
+ * Writes the exact bytes hashed for each method's drilldown to a file per
+ * class as they are hashed, for finding out why two deep hashes differ. Each
+ * method's bytes are preceded by a line containing <code>#</code> and its key
+ * and followed by a newline, neither of which is hashed; files are written
+ * through a fixed size buffer, so tracing does not hold anything extra in
+ * memory.
+ *
+ * @author Tim Boudreau
+ */
+final class Trace {
+
+    private final Path dir;
+
+    Trace(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Open the trace for a class. The file is created when the first method
+     * is traced.
+     *
+     * @param className The qualified class name
+     * @return A writer, which must be closed
+     */
+    Writer open(String className) {
+        return new Writer(dir.resolve(className + ".trace"));
+    }
+
+    static final class Writer implements AutoCloseable {
+
+        private final Path file;
+        private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        private FileChannel channel;
+
+        Writer(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Wrap the digest for a method's drilldown so that everything it is
+         * updated with is also written to the trace.
+         *
+         * @param member The member key
+         * @param digest The digest
+         * @return A digest which computes the same result
+         */
+        MessageDigest tee(String member, MessageDigest digest) {
+            byte[] header = ("# " + member + '\n').getBytes(UTF_8);
+            write(header, 0, header.length);
+            return new TeeDigest(digest, this);
+        }
+
+        private void write(byte[] bytes, int offset, int length) {
+            try {
+                if (channel == null) {
+                    Files.createDirectories(file.getParent());
+                    channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE);
+                }
+                if (length > buffer.remaining()) {
+                    flush();
+                }
+                if (length > buffer.capacity()) {
+                    ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+                    while (wrapped.hasRemaining()) {
+                        channel.write(wrapped);
+                    }
+                } else {
+                    buffer.put(bytes, offset, length);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() {
+            if (channel != null) {
+                try {
+                    try {
+                        flush();
+                    } finally {
+                        channel.close();
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                } finally {
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    private static final class TeeDigest extends MessageDigest {
+
+        private static final byte[] NEWLINE = {'\n'};
+        private final MessageDigest delegate;
+        private final Writer writer;
+        private final byte[] one = new byte[1];
+
+        TeeDigest(MessageDigest delegate, Writer writer) {
+            super(delegate.getAlgorithm());
+            this.delegate = delegate;
+            this.writer = writer;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            delegate.update(input);
+            one[0] = input;
+            writer.write(one, 0, 1);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            delegate.update(input, offset, len);
+            writer.write(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            writer.write(NEWLINE, 0, 1);
+            return delegate.digest();
+        }
+
+        @Override
+        protected void engineReset() {
+            delegate.reset();
+        }
+    }
+}
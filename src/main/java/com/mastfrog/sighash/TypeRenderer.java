@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.IntersectionType;
+import javax.lang.model.type.NoType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.UnionType;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.SimpleTypeVisitor9;
+
+/**
+ * Renders types to strings in a canonical form, caching the result per type
+ * instance (and per type element for non-generic types), so that each type
+ * is rendered only once per javac task. The output matches javac's own
+ * <code>toString()</code> for the types that appear in signatures, except
+ * that type annotations are omitted, and captured type variables are rendered
+ * without the per-compilation serial number javac gives them, neither of
+ * which should affect a signature hash.
+ * <p>
+ * Not thread-safe - use one instance per javac task.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class TypeRenderer extends SimpleTypeVisitor9<StringBuilder, StringBuilder> {
+
+    private final Map<TypeMirror, String> byType = new IdentityHashMap<>(512);
+    private final Map<Element, String> byElement = new HashMap<>(512);
+
+    String render(TypeMirror type) {
+        if (type == null) {
+            return "null";
+        }
+        String result = byType.get(type);
+        if (result == null) {
+            if (isSimpleDeclaredType(type)) {
+                Element el = ((DeclaredType) type).asElement();
+                result = byElement.get(el);
+                if (result == null) {
+                    result = visit(type, new StringBuilder(48)).toString();
+                    byElement.put(el, result);
+                }
+            } else {
+                result = visit(type, new StringBuilder(48)).toString();
+            }
+            byType.put(type, result);
+        }
+        return result;
+    }
+
+    private static boolean isSimpleDeclaredType(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        DeclaredType dt = (DeclaredType) type;
+        return dt.getTypeArguments().isEmpty()
+                && dt.getEnclosingType().getKind() != TypeKind.DECLARED;
+    }
+
+    @Override
+    protected StringBuilder defaultAction(TypeMirror e, StringBuilder p) {
+        return p.append(e);
+    }
+
+    @Override
+    public StringBuilder visitPrimitive(PrimitiveType t, StringBuilder p) {
+        return p.append(t.getKind().name().toLowerCase());
+    }
+
+    @Override
+    public StringBuilder visitNoType(NoType t, StringBuilder p) {
+        switch (t.getKind()) {
+            case VOID:
+                return p.append("void");
+            case NONE:
+                return p.append("none");
+            default:
+                return p.append(t);
+        }
+    }
+
+    @Override
+    public StringBuilder visitArray(ArrayType t, StringBuilder p) {
+        return p.append(render(t.getComponentType())).append("[]");
+    }
+
+    @Override
+    public StringBuilder visitDeclared(DeclaredType t, StringBuilder p) {
+        TypeElement el = (TypeElement) t.asElement();
+        NestingKind nesting = el.getNestingKind();
+        if (nesting == NestingKind.ANONYMOUS || nesting == NestingKind.LOCAL) {
+            // javac's names for these are not something we can reproduce
+            return p.append(t);
+        }
+        TypeMirror enclosing = t.getEnclosingType();
+        if (enclosing.getKind() == TypeKind.DECLARED) {
+            // An inner class, possibly of a parameterized type
+            p.append(render(enclosing)).append('.').append(el.getSimpleName());
+        } else {
+            p.append(el.getQualifiedName());
+        }
+        List<? extends TypeMirror> args = t.getTypeArguments();
+        if (!args.isEmpty()) {
+            p.append('<');
+            appendAll(args, ",", p);
+            p.append('>');
+        }
+        return p;
+    }
+
+    @Override
+    public StringBuilder visitTypeVariable(TypeVariable t, StringBuilder p) {
+        String name = t.asElement().getSimpleName().toString();
+        if (!name.isEmpty() && name.charAt(0) == '<') {
+            // A captured wildcard, which javac renders as, e.g.,
+            // "capture#371 of ? extends Foo" - the number is a serial
+            // number which may differ between runs
+            String str = t.toString();
+            int ix = str.indexOf(" of ");
+            return p.append("capture").append(ix < 0 ? "" : str.substring(ix));
+        }
+        return p.append(name);
+    }
+
+    @Override
+    public StringBuilder visitWildcard(WildcardType t, StringBuilder p) {
+        p.append('?');
+        if (t.getExtendsBound() != null) {
+            p.append(" extends ").append(render(t.getExtendsBound()));
+        } else if (t.getSuperBound() != null) {
+            p.append(" super ").append(render(t.getSuperBound()));
+        }
+        return p;
+    }
+
+    @Override
+    public StringBuilder visitIntersection(IntersectionType t, StringBuilder p) {
+        return appendAll(t.getBounds(), "&", p);
+    }
+
+    @Override
+    public StringBuilder visitUnion(UnionType t, StringBuilder p) {
+        return appendAll(t.getAlternatives(), "|", p);
+    }
+
+    private StringBuilder appendAll(List<? extends TypeMirror> types, String delimiter, StringBuilder p) {
+        for (Iterator<? extends TypeMirror> it = types.iterator(); it.hasNext();) {
+            p.append(render(it.next()));
+            if (it.hasNext()) {
+                p.append(delimiter);
+            }
+        }
+        return p;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, toExpression any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), toExpression deal
+ * in the Software without restriction, including without limitation the rights
+ * toExpression use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and toExpression permit persons toExpression whom the Software is
+ * furnished toExpression do so, subject toExpression the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.sighash;
+
+import java.security.MessageDigest;
+
+/**
+ * A MessageDigest implementation of the 64-bit xxHash algorithm (seed 0), for
+ * fast, non-cryptographic lookups of signature hashes. The digest is the
+ * 8-byte big-endian (canonical) form of the hash.
+ *
+ * @author Tim Boudreau
+ */
+final class XXHash64Digest extends MessageDigest implements Cloneable {
+
+    static final String ALGORITHM = "XXH64";
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+    private byte[] buffer = new byte[32];
+    private int buffered;
+    private long totalLength;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+    XXHash64Digest() {
+        super(ALGORITHM);
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return Long.BYTES;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        buffer[buffered++] = input;
+        totalLength++;
+        if (buffered == 32) {
+            consumeStripes(buffer, 0, 32);
+            buffered = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        totalLength += len;
+        if (buffered > 0) {
+            int fill = Math.min(len, 32 - buffered);
+            System.arraycopy(input, offset, buffer, buffered, fill);
+            buffered += fill;
+            offset += fill;
+            len -= fill;
+            if (buffered < 32) {
+                return;
+            }
+            consumeStripes(buffer, 0, 32);
+            buffered = 0;
+        }
+        int stripes = len & ~31;
+        if (stripes > 0) {
+            consumeStripes(input, offset, stripes);
+            offset += stripes;
+            len -= stripes;
+        }
+        if (len > 0) {
+            System.arraycopy(input, offset, buffer, 0, len);
+            buffered = len;
+        }
+    }
+
+    private void consumeStripes(byte[] input, int offset, int len) {
+        long a = v1;
+        long b = v2;
+        long c = v3;
+        long d = v4;
+        for (int end = offset + len; offset < end; offset += 32) {
+            a = round(a, longAt(input, offset));
+            b = round(b, longAt(input, offset + 8));
+            c = round(c, longAt(input, offset + 16));
+            d = round(d, longAt(input, offset + 24));
+        }
+        v1 = a;
+        v2 = b;
+        v3 = c;
+        v4 = d;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long h;
+        if (totalLength >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = PRIME_5;
+        }
+        h += totalLength;
+        int pos = 0;
+        for (; pos + 8 <= buffered; pos += 8) {
+            h ^= round(0, longAt(buffer, pos));
+            h = Long.rotateLeft(h, 27) * PRIME_1 + PRIME_4;
+        }
+        if (pos + 4 <= buffered) {
+            h ^= (intAt(buffer, pos) & 0xFFFFFFFFL) * PRIME_1;
+            h = Long.rotateLeft(h, 23) * PRIME_2 + PRIME_3;
+            pos += 4;
+        }
+        for (; pos < buffered; pos++) {
+            h ^= (buffer[pos] & 0xFFL) * PRIME_5;
+            h = Long.rotateLeft(h, 11) * PRIME_1;
+        }
+        h ^= h >>> 33;
+        h *= PRIME_2;
+        h ^= h >>> 29;
+        h *= PRIME_3;
+        h ^= h >>> 32;
+        engineReset();
+        byte[] result = new byte[Long.BYTES];
+        for (int i = 0; i < Long.BYTES; i++) {
+            result[i] = (byte) (h >>> (56 - (i * 8)));
+        }
+        return result;
+    }
+
+    @Override
+    protected void engineReset() {
+        v1 = PRIME_1 + PRIME_2;
+        v2 = PRIME_2;
+        v3 = 0;
+        v4 = -PRIME_1;
+        buffered = 0;
+        totalLength = 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        XXHash64Digest result = (XXHash64Digest) super.clone();
+        result.buffer = buffer.clone();
+        return result;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME_1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME_1 + PRIME_4;
+    }
+
+    private static long longAt(byte[] b, int at) {
+        return (b[at] & 0xFFL)
+                | (b[at + 1] & 0xFFL) << 8
+                | (b[at + 2] & 0xFFL) << 16
+                | (b[at + 3] & 0xFFL) << 24
+                | (b[at + 4] & 0xFFL) << 32
+                | (b[at + 5] & 0xFFL) << 40
+                | (b[at + 6] & 0xFFL) << 48
+                | (b[at + 7] & 0xFFL) << 56;
+    }
+
+    private static int intAt(byte[] b, int at) {
+        return (b[at] & 0xFF)
+                | (b[at + 1] & 0xFF) << 8
+                | (b[at + 2] & 0xFF) << 16
+                | (b[at + 3] & 0xFF) << 24;
+    }
+}
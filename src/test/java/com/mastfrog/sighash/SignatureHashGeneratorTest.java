@@ -25,17 +25,67 @@ package com.mastfrog.sighash;
 
 import com.mastfrog.util.file.FileUtils;
 import com.mastfrog.util.streams.Streams;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Trees;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
 import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -92,6 +142,910 @@ public class SignatureHashGeneratorTest {
         }
     }
 
+    @Test
+    public void testCombinedHash() throws Exception {
+        SigTree tree = SigTree.create(root);
+        SigTree tree2 = SigTree.create(root2);
+        String shallow = tree.combinedHash("SHA-512", false);
+        String deep = tree.combinedHash("SHA-512", true);
+        assertNotEquals(shallow, deep);
+        assertEquals(shallow, tree.combinedHash("SHA-512", false));
+        assertEquals(shallow, tree2.combinedHash("SHA-512", false));
+        assertEquals(deep, tree2.combinedHash("SHA-512", true));
+        for (ClassSignature c : tree) {
+            assertTrue(c.isFrozen(), c.name());
+            assertArrayEquals(c.digest("SHA-256", true), c.digest("SHA-256", true));
+        }
+    }
+
+    @Test
+    public void testMultipleAlgorithmsInOnePass() throws Exception {
+        SigTree tree = SigTree.create(root);
+        for (boolean deep : new boolean[]{false, true}) {
+            Map<String, String> hashes = tree.hashes(deep, "SHA-256", "SHA-512", "XXH64");
+            assertEquals(3, hashes.size());
+            for (Map.Entry<String, String> e : hashes.entrySet()) {
+                assertEquals(tree.hash(e.getKey(), deep), e.getValue(), e.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void testMerkleRootIsIndependentOfParallelism() throws Exception {
+        SigTree tree = SigTree.create(root);
+        SigTree tree2 = SigTree.create(root2);
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool multi = new ForkJoinPool(4);
+        try {
+            String expected = tree.merkleRoot("SHA-256", true, single);
+            assertEquals(expected, tree.merkleRoot("SHA-256", true, multi));
+            assertEquals(expected, tree2.merkleRoot("SHA-256", true, multi));
+            assertNotEquals(expected, tree.merkleRoot("SHA-256", false, multi));
+        } finally {
+            single.shutdown();
+            multi.shutdown();
+        }
+    }
+
+    @Test
+    public void testPartitionedCompilationMatchesSingleTask() throws Exception {
+        Path otherPackage = root.resolve("com/mastfrog/other");
+        Files.createDirectories(otherPackage);
+        FileUtils.writeUtf8(otherPackage.resolve("Third.java"), "package com.mastfrog.other;\n"
+                + "public class Third {\n"
+                + "    public int x(com.mastfrog.sighash.TestClass<?> t) {\n"
+                + "        t.add(1, \"x\");\n"
+                + "        return 3;\n"
+                + "    }\n"
+                + "}\n");
+        SigTree single = SigTree.create(root);
+        SigTree partitioned = SigTree.create(null, new SigTreeConfig()
+                .partitioning(SigTreeConfig.Partitioning.PACKAGE).threads(2), root);
+        assertEquals(single.hash("SHA-256", false), partitioned.hash("SHA-256", false));
+        assertEquals(single.hash("SHA-256", true), partitioned.hash("SHA-256", true));
+    }
+
+    @Test
+    public void testClosureBudget() throws Exception {
+        SigTreeConfig config = new SigTreeConfig().closureBudget(new ClosureBudget(0, 1000, 1000));
+        SigTree unlimited = SigTree.create(root);
+        SigTree bounded = SigTree.create(null, config, root);
+        SigTree bounded2 = SigTree.create(null, config, root2);
+        assertTrue(unlimited.budgetHits().isEmpty());
+        assertTrue(bounded.budgetHits().containsKey(ClosureBudget.Kind.DEPTH), bounded.budgetHits().toString());
+        assertEquals(unlimited.hash("SHA-256", false), bounded.hash("SHA-256", false));
+        assertNotEquals(unlimited.hash("SHA-256", true), bounded.hash("SHA-256", true));
+        assertEquals(bounded.hash("SHA-256", true), bounded2.hash("SHA-256", true));
+    }
+
+    @Test
+    public void testCompactTokens() throws Exception {
+        SigTreeConfig config = new SigTreeConfig().compactTokens(true);
+        SigTree text = SigTree.create(root);
+        SigTree tokens = SigTree.create(null, config, root);
+        SigTree tokens2 = SigTree.create(null, config, root2);
+        assertEquals(text.hash("SHA-256", false), tokens.hash("SHA-256", false));
+        assertNotEquals(text.hash("SHA-256", true), tokens.hash("SHA-256", true));
+        assertEquals(tokens.hash("SHA-256", true), tokens2.hash("SHA-256", true));
+    }
+
+    @Test
+    public void testTrace() throws Exception {
+        Path traces = FileUtils.newTempDir();
+        try {
+            SigTree tree = SigTree.create(root);
+            SigTree traced = SigTree.create(null, new SigTreeConfig().trace(traces), root);
+            assertEquals(tree.hash("SHA-256", true), traced.hash("SHA-256", true));
+            Path file = traces.resolve("com.mastfrog.sighash.TestClass.trace");
+            assertTrue(Files.exists(file), file.toString());
+            String trace = new String(Files.readAllBytes(file), UTF_8);
+            assertTrue(trace.startsWith("# "), trace);
+            assertTrue(trace.contains("\n# doSomething(java.lang.String)\n"), trace);
+        } finally {
+            FileUtils.deltree(traces);
+        }
+    }
+
+    @Test
+    public void testExplain() throws Exception {
+        String member = "com.mastfrog.sighash.TestClass#add(int,java.lang.String)";
+        Explanation explanation = SigTree.explain(null, new SigTreeConfig(), member, root);
+        assertEquals(member, explanation.member());
+        List<Object> hashed = new ArrayList<>();
+        for (ClassSignature c : SigTree.create(root)) {
+            for (MethodSignature m : c.methods()) {
+                if (member.equals(c.name() + '#' + m.key())) {
+                    m.hashInto(hashed::add, true);
+                }
+            }
+        }
+        assertTrue(hashed.stream().anyMatch(o -> explanation.digest().contentEquals(String.valueOf(o))),
+                explanation.toString());
+        Explanation.Node privateAdd = explanation.closure().children().get(1);
+        assertEquals("com.mastfrog.sighash.TestClass.add", privateAdd.name());
+        assertEquals(Explanation.Kind.SCANNED, privateAdd.kind());
+        assertEquals("com.mastfrog.sighash.OtherTestClass.add", privateAdd.children().get(0).name());
+        assertTrue(explanation.tokens().startsWith("add "), explanation.tokens());
+        assertEquals(2, explanation.sourceFiles().size());
+        assertThrows(IllegalArgumentException.class,
+                () -> SigTree.explain(null, new SigTreeConfig(), "com.mastfrog.sighash.TestClass#nothing()", root));
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        SigTree tree = SigTree.create(root);
+        SigTree spilled = SigTree.create(null, new SigTreeConfig().memoryBudget(1), root);
+        assertTrue(tree.estimatedBytes() > 0);
+        assertEquals(0, tree.spilledClasses());
+        assertTrue(spilled.spilledClasses() > 0);
+        for (boolean deep : new boolean[]{true, false}) {
+            assertEquals(tree.hash("SHA-256", deep), spilled.hash("SHA-256", deep));
+            assertEquals(tree.combinedHash("SHA-256", deep), spilled.combinedHash("SHA-256", deep));
+            assertEquals(tree.merkleRoot("SHA-256", deep), spilled.merkleRoot("SHA-256", deep));
+            assertEquals(tree.memberDigests("SHA-256", deep).keySet(),
+                    spilled.memberDigests("SHA-256", deep).keySet());
+        }
+    }
+
+    @Test
+    public void testSpillRunsAreCompacted() throws Exception {
+        SigTree tree = SigTree.create(root);
+        List<ClassSignature> classes = new ArrayList<>();
+        tree.iterator().forEachRemaining(classes::add);
+        assertFalse(classes.isEmpty());
+        Spill spill = new Spill(tree);
+        for (int i = 0; i < 20; i++) {
+            for (ClassSignature clazz : classes) {
+                spill.write(Collections.singleton(clazz));
+            }
+        }
+        assertTrue(spill.runs() < 16, "Runs not compacted: " + spill.runs());
+        List<ClassSignature> merged = new ArrayList<>();
+        spill.iterator(Collections.emptySet()).forEachRemaining(merged::add);
+        assertEquals(classes.size(), merged.size());
+        for (int i = 0; i < classes.size(); i++) {
+            assertEquals(0, classes.get(i).compareTo(merged.get(i)), merged.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testCombinedHashIsADifferentHash() throws Exception {
+        SigTree tree = SigTree.create(root);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (ClassSignature clazz : tree) {
+            digest.update(clazz.digest("SHA-256", true));
+        }
+        assertEquals(Base64.getUrlEncoder().encodeToString(digest.digest()), tree.combinedHash("SHA-256", true));
+        assertEquals(SigTree.create(root).combinedHash("SHA-256", true), tree.combinedHash("SHA-256", true));
+        assertNotEquals(tree.hash("SHA-256", true), tree.combinedHash("SHA-256", true));
+    }
+
+    @Test
+    public void testLazySourcePath() throws Exception {
+        FileUtils.writeUtf8(root.resolve("com/mastfrog/sighash/Helper.java"), "package com.mastfrog.sighash;\n"
+                + "class Helper {\n"
+                + "    static int help(int a) {\n"
+                + "        return a * 2;\n"
+                + "    }\n"
+                + "}\n");
+        // Only reachable from public code through a deep-mode call
+        FileUtils.writeUtf8(root.resolve("com/mastfrog/sighash/Caller.java"), "package com.mastfrog.sighash;\n"
+                + "public class Caller {\n"
+                + "    public int call() {\n"
+                + "        return Helper.help(3);\n"
+                + "    }\n"
+                + "}\n");
+        SigTree full = SigTree.create(root);
+        SigTree lazy = SigTree.create(null, new SigTreeConfig().lazySourcePath(true), root);
+        assertEquals(full.hash("SHA-256", false), lazy.hash("SHA-256", false));
+        assertEquals(full.hash("SHA-256", true), lazy.hash("SHA-256", true));
+    }
+
+    @Test
+    public void testLazySourcePathWithNonPublicTypes() throws Exception {
+        Path pkg = root.resolve("com/mastfrog/sighash");
+        // A public type sharing its file with a package-private one
+        FileUtils.writeUtf8(pkg.resolve("Api.java"), "package com.mastfrog.sighash;\n"
+                + "public class Api {\n"
+                + "    public int run(int a) {\n"
+                + "        return Impl.twice(a) + Sibling.ONE;\n"
+                + "    }\n"
+                + "}\n"
+                + "class Sibling {\n"
+                + "    static final int ONE = 1;\n"
+                + "}\n");
+        // Package-private, and only reached through a deep-mode call
+        FileUtils.writeUtf8(pkg.resolve("Impl.java"), "package com.mastfrog.sighash;\n"
+                + "class Impl {\n"
+                + "    static int twice(int a) {\n"
+                + "        return Unused.thrice(a) - a;\n"
+                + "    }\n"
+                + "}\n");
+        // Package-private and called only by other non-public code
+        FileUtils.writeUtf8(pkg.resolve("Unused.java"), "package com.mastfrog.sighash;\n"
+                + "final class Unused {\n"
+                + "    static int thrice(int a) {\n"
+                + "        return a * 3;\n"
+                + "    }\n"
+                + "}\n");
+        SigTree eager = SigTree.create(root);
+        SigTree lazy = SigTree.create(null, new SigTreeConfig().lazySourcePath(true), root);
+        for (boolean deep : new boolean[]{true, false}) {
+            assertEquals(eager.hash("SHA-256", deep), lazy.hash("SHA-256", deep));
+            assertEquals(eager.memberDigests("SHA-256", deep).keySet(), lazy.memberDigests("SHA-256", deep).keySet());
+        }
+        FileUtils.writeUtf8(pkg.resolve("Unused.java"), "package com.mastfrog.sighash;\n"
+                + "final class Unused {\n"
+                + "    static int thrice(int a) {\n"
+                + "        return a + a + a;\n"
+                + "    }\n"
+                + "}\n");
+        // The change is only visible through the deep closure of Api.run()
+        String changed = SigTree.create(null, new SigTreeConfig().lazySourcePath(true), root).hash("SHA-256", true);
+        assertNotEquals(lazy.hash("SHA-256", true), changed);
+        assertEquals(SigTree.create(root).hash("SHA-256", true), changed);
+    }
+
+    @Test
+    public void testInMemorySources() throws Exception {
+        Map<String, String> sources = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".java"))::iterator) {
+                sources.put(root.relativize(file).toString(), new String(Files.readAllBytes(file), UTF_8));
+            }
+        }
+        SigTree onDisk = SigTree.create(root);
+        SigTree inMemory = SigTree.create(null, sources);
+        assertEquals(onDisk.hash("SHA-256", false), inMemory.hash("SHA-256", false));
+        assertEquals(onDisk.hash("SHA-256", true), inMemory.hash("SHA-256", true));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        SigTree tree = SigTree.create(root);
+        assertEquals(tree.hash("SHA-256", true), SigTree.hashAsync(null, new SigTreeConfig(),
+                SigTree.defaultExecutor(), "SHA-256", true, root).get());
+        // Nothing should run once the future has been cancelled
+        List<Runnable> queued = new ArrayList<>();
+        CompletableFuture<SigTree> future = SigTree.createAsync(null, new SigTreeConfig(),
+                queued::add, Collections.emptySet(), root);
+        future.cancel(false);
+        queued.forEach(Runnable::run);
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void testCancelDuringParse() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            // Cancelled as soon as javac reads either in-memory file
+            boolean[] read = new boolean[1];
+            List<MemorySource> sources = Arrays.asList(
+                    new MemorySource("com/mastfrog/sighash/First.java", new Tripwire("First", read)),
+                    new MemorySource("com/mastfrog/sighash/Second.java", new Tripwire("Second", read)));
+            List<String> entered = new ArrayList<>();
+            SignatureHashGenerator gen = new SignatureHashGenerator(new Path[]{root}).memorySources(sources)
+                    .config(new SigTreeConfig().lazySourcePath(lazy)).cancelled(() -> read[0]);
+            CancellationException ex = assertThrows(CancellationException.class,
+                    () -> gen.go((task, type, element, trees) -> entered.add(element.toString())));
+            assertEquals(Collections.emptyList(), entered);
+            // Thrown while javac was parsing, not between classes afterwards
+            boolean inJavac = false;
+            boolean inLazyParse = false;
+            for (StackTraceElement frame : ex.getStackTrace()) {
+                inJavac |= frame.getClassName().startsWith("com.sun.tools.javac.");
+                inLazyParse |= "declaringPublicTypes".equals(frame.getMethodName());
+            }
+            assertTrue(inJavac, "lazy " + lazy);
+            assertEquals(lazy, inLazyParse);
+        }
+    }
+
+    private static final class Tripwire implements CharSequence {
+
+        private final String content;
+        private final boolean[] read;
+
+        Tripwire(String className, boolean[] read) {
+            this.content = "package com.mastfrog.sighash;\npublic class " + className + " {}\n";
+            this.read = read;
+        }
+
+        @Override
+        public int length() {
+            read[0] = true;
+            return content.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            read[0] = true;
+            return content.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            read[0] = true;
+            return content.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            read[0] = true;
+            return content;
+        }
+    }
+
+    @Test
+    public void testXXHash64KnownAnswers() throws Exception {
+        // Published vectors for seed 0
+        Map<String, Long> vectors = new LinkedHashMap<>();
+        vectors.put("", 0xEF46DB3751D8E999L);
+        vectors.put("a", 0xD24EC4F1A98C6E5BL);
+        vectors.put("abc", 0x44BC2CF5AD770999L);
+        vectors.put("Nobody inspects the spammish repetition", 0xFBCEA83C8A378BF1L);
+        for (Map.Entry<String, Long> e : vectors.entrySet()) {
+            byte[] input = e.getKey().getBytes(UTF_8);
+            byte[] expected = ByteBuffer.allocate(Long.BYTES).putLong(e.getValue()).array();
+            assertArrayEquals(expected, DigestFactory.create("XXH64").digest(input), e.getKey());
+            // Byte at a time, through the 32-byte stripe buffer
+            MessageDigest digest = DigestFactory.create("XXH64");
+            for (byte b : input) {
+                digest.update(b);
+            }
+            assertArrayEquals(expected, digest.digest(), e.getKey());
+        }
+        // Longer input, fed in uneven pieces, must match a single update
+        byte[] input = new byte[1000];
+        new Random(42).nextBytes(input);
+        byte[] whole = DigestFactory.create("XXH64").digest(input);
+        MessageDigest pieces = DigestFactory.create("XXH64");
+        for (int offset = 0, len = 1; offset < input.length; offset += len, len = len * 2 + 1) {
+            pieces.update(input, offset, Math.min(len, input.length - offset));
+        }
+        assertArrayEquals(whole, pieces.digest());
+    }
+
+    @Test
+    public void testDigestFactoryConcurrency() throws Exception {
+        String[] algorithms = {"SHA-256", "SHA-512", "MD5"};
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 500; i++) {
+                        String algorithm = algorithms[i % algorithms.length];
+                        byte[] bytes = new byte[random.nextInt(256)];
+                        random.nextBytes(bytes);
+                        // A digest left part way through must not affect the
+                        // next one created on this thread
+                        DigestFactory.create(algorithm).update(bytes);
+                        MessageDigest digest = DigestFactory.create(algorithm);
+                        digest.update(bytes);
+                        assertArrayEquals(MessageDigest.getInstance(algorithm).digest(bytes), digest.digest(),
+                                algorithm + " " + i);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPublisher() throws Exception {
+        SigTree tree = SigTree.create(root);
+        Map<String, String> expected = new TreeMap<>();
+        for (ClassSignature c : tree) {
+            expected.put(c.name(), Base64.getUrlEncoder().encodeToString(c.digest("SHA-256", true)));
+        }
+        List<Signature> received = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        SigTree.publisher(null, new SigTreeConfig(), SigTree.defaultExecutor(), root).subscribe(new Flow.Subscriber<Signature>() {
+            private Flow.Subscription subscription;
+            private long requested;
+
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription = s;
+                requested = 1;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(Signature item) {
+                received.add(item);
+                // Production should stall until more is requested
+                if (received.size() > requested) {
+                    subscription.cancel();
+                    done.completeExceptionally(new AssertionError("Got " + received.size()
+                            + " items with " + requested + " requested"));
+                    return;
+                }
+                requested++;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        done.get(30, TimeUnit.SECONDS);
+        assertTrue(received.get(0) instanceof ClassSignature);
+        // Each class is followed by its members in hash order
+        for (int i = 0; i < received.size(); i++) {
+            if (received.get(i) instanceof ClassSignature) {
+                ClassSignature c = (ClassSignature) received.get(i);
+                List<Signature> members = new ArrayList<>();
+                c.fields().forEach(members::add);
+                c.methods().forEach(members::add);
+                assertEquals(members, received.subList(i + 1, i + 1 + members.size()), c.name());
+            }
+        }
+        Map<String, String> published = new TreeMap<>();
+        SigTree.publisher(null, new SigTreeConfig(), Runnable::run, root).subscribe(new Flow.Subscriber<Signature>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Signature item) {
+                if (item instanceof ClassSignature) {
+                    ClassSignature c = (ClassSignature) item;
+                    try {
+                        published.put(c.name(), Base64.getUrlEncoder().encodeToString(c.digest("SHA-256", true)));
+                    } catch (NoSuchAlgorithmException ex) {
+                        throw new AssertionError(ex);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throw new AssertionError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertEquals(expected, published);
+    }
+
+    @Test
+    public void testPublisherSubscriberFailure() throws Exception {
+        List<Signature> received = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        boolean[] completed = new boolean[1];
+        SigTree.publisher(null, new SigTreeConfig(), Runnable::run, root).subscribe(new Flow.Subscriber<Signature>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Signature item) {
+                received.add(item);
+                throw new IllegalStateException("Subscriber failure");
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                errors.add(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+        // A subscriber whose onNext throws is cancelled, not sent onError
+        assertEquals(1, received.size());
+        assertEquals(Collections.emptyList(), errors);
+        assertFalse(completed[0]);
+    }
+
+    @Test
+    public void testHotspots() throws Exception {
+        SigTree plain = SigTree.create(root);
+        SigTree tree = SigTree.create(null, new SigTreeConfig().hotspots(true), root);
+        assertEquals(plain.hash("SHA-256", true), tree.hash("SHA-256", true));
+        HotspotReport report = tree.hotspots();
+        assertTrue(report.size() > 0);
+        List<HotspotReport.Hotspot> largest = report.largestClosures(report.size());
+        assertEquals(report.size(), largest.size());
+        for (HotspotReport.Hotspot h : largest) {
+            assertTrue(h.nodes() <= largest.get(0).nodes(), h.toString());
+            assertTrue(h.method().contains("#"), h.method());
+        }
+        int total = 0;
+        for (int count : report.histogram().values()) {
+            total += count;
+        }
+        assertEquals(report.size(), total);
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        SigTree tree = SigTree.create(root);
+        Map<String, byte[]> digests = tree.memberDigests("SHA-256", true);
+        Path file = root.resolve("members.shm");
+        // A tiny block size, so lookups cross block boundaries
+        try (OutputStream out = Files.newOutputStream(file)) {
+            Manifest.write(out, "SHA-256", true, tree.hash("SHA-256", true), digests, 3);
+        }
+        Manifest manifest = Manifest.open(file);
+        assertEquals("SHA-256", manifest.algorithm());
+        assertTrue(manifest.isDeep());
+        assertEquals(tree.hash("SHA-256", true), manifest.hash());
+        assertEquals(digests.size(), manifest.size());
+        for (Map.Entry<String, byte[]> e : digests.entrySet()) {
+            assertArrayEquals(e.getValue(), manifest.get(e.getKey()), e.getKey());
+            assertEquals(null, manifest.get(e.getKey() + "x"));
+            assertEquals(null, manifest.get(e.getKey().substring(0, e.getKey().length() - 1)));
+        }
+        assertEquals(null, manifest.get(""));
+        Map<String, byte[]> read = new TreeMap<>();
+        manifest.forEach(read::put);
+        assertEquals(digests.keySet(), read.keySet());
+        for (String prefix : digests.keySet()) {
+            List<String> expected = new ArrayList<>();
+            for (String key : digests.keySet()) {
+                if (key.startsWith(prefix)) {
+                    expected.add(key);
+                }
+            }
+            List<String> found = new ArrayList<>();
+            manifest.forEach(prefix, (key, digest) -> found.add(key));
+            assertEquals(expected, found, prefix);
+        }
+    }
+
+    @Test
+    public void testRollups() throws Exception {
+        Map<String, String> sources = new TreeMap<>();
+        sources.put("module-info.java", "module foo.bar { exports a; exports b; }");
+        sources.put("a/A.java", "package a; public class A { public int x() { return b.B.y(); } }");
+        sources.put("b/B.java", "package b; public class B { public static int y() { return 1; } }");
+        SigTree before = SigTree.create(null, sources);
+        sources.put("b/B.java", "package b; public class B { public static int y() { return 1; } "
+                + "public void z() {} }");
+        SigTree after = SigTree.create(null, sources);
+        Map<String, String> beforePackages = before.packageHashes("SHA-256", true);
+        Map<String, String> afterPackages = after.packageHashes("SHA-256", true);
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(beforePackages.keySet()));
+        assertEquals(beforePackages.get("a"), afterPackages.get("a"));
+        assertNotEquals(beforePackages.get("b"), afterPackages.get("b"));
+        assertEquals(Collections.singleton("foo.bar"), before.moduleHashes("SHA-256", true).keySet());
+        assertNotEquals(before.moduleHashes("SHA-256", true), after.moduleHashes("SHA-256", true));
+        assertTrue(SigTree.create(root).moduleHashes("SHA-256", true).isEmpty());
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        SigTree tree = SigTree.create(root);
+        String jobs = "{\"id\":\"shallow\",\"sources\":[" + Json.toString(root.toString()) + "],\"algorithms\":[\"SHA-256\"]}\n"
+                + "{\"id\":\"deep\",\"sources\":" + Json.toString(root.toString()) + ",\"mode\":\"deep\",\"algorithms\":\"SHA-256\"}\n"
+                + "{\"id\":\"bad\",\"sources\":[]}\n";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new Batch(new PrintStream(bytes, true, "UTF-8"), 2).run(new BufferedReader(new StringReader(jobs)));
+        Map<String, Map<?, ?>> results = new TreeMap<>();
+        for (String line : new String(bytes.toByteArray(), UTF_8).split("\n")) {
+            Map<?, ?> result = (Map<?, ?>) Json.parse(line);
+            results.put((String) result.get("id"), result);
+        }
+        assertEquals(Arrays.asList("bad", "deep", "shallow"), new ArrayList<>(results.keySet()));
+        assertEquals(tree.hash("SHA-256", false), ((Map<?, ?>) results.get("shallow").get("hashes")).get("SHA-256"));
+        assertEquals(tree.hash("SHA-256", true), ((Map<?, ?>) results.get("deep").get("hashes")).get("SHA-256"));
+        assertTrue(results.get("bad").containsKey("error"));
+    }
+
+    @Test
+    public void testSourcesJar() throws Exception {
+        Path jar = root2.resolve("test-sources.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar));
+                Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".java"))::iterator) {
+                out.putNextEntry(new ZipEntry(root.relativize(file).toString().replace('\\', '/')));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
+        }
+        SigTree dir = SigTree.create(root);
+        SigTree zipped = SigTree.create(jar);
+        assertEquals(dir.hash("SHA-256", false), zipped.hash("SHA-256", false));
+        assertEquals(dir.hash("SHA-256", true), zipped.hash("SHA-256", true));
+        SigTree lazy = SigTree.create(null, new SigTreeConfig().lazySourcePath(true), jar);
+        assertEquals(dir.hash("SHA-256", true), lazy.hash("SHA-256", true));
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        Path helper = root.resolve("com/mastfrog/sighash/Helper.java");
+        FileUtils.writeUtf8(helper, "package com.mastfrog.sighash;\n"
+                + "public class Helper {\n"
+                + "    public static int help(int a) {\n"
+                + "        return a * 2;\n"
+                + "    }\n"
+                + "}\n");
+        FileUtils.writeUtf8(root.resolve("com/mastfrog/sighash/Caller.java"), "package com.mastfrog.sighash;\n"
+                + "public class Caller {\n"
+                + "    public int call() {\n"
+                + "        return Helper.help(3);\n"
+                + "    }\n"
+                + "}\n");
+        SigTree original = SigTree.create(root);
+        Path saved = root2.resolve("tree.sig");
+        original.save(saved);
+        SigTree loaded = SigTree.load(saved);
+        assertEquals(original.hash("SHA-256", true), loaded.hash("SHA-256", true));
+        assertEquals(original.hash("SHA-256", false), loaded.hash("SHA-256", false));
+
+        FileUtils.writeUtf8(helper, "package com.mastfrog.sighash;\n"
+                + "public class Helper {\n"
+                + "    public static int help(int a) {\n"
+                + "        return Math.abs(a) * 2;\n"
+                + "    }\n"
+                + "}\n");
+        SigTree updated = loaded.update(null, Collections.singleton(helper), root);
+        SigTree full = SigTree.create(root);
+        assertNotEquals(original.hash("SHA-256", true), full.hash("SHA-256", true));
+        assertEquals(full.hash("SHA-256", true), updated.hash("SHA-256", true));
+        assertEquals(full.hash("SHA-256", false), updated.hash("SHA-256", false));
+        assertEquals(full.memberDigests("SHA-256", true).keySet(), updated.memberDigests("SHA-256", true).keySet());
+    }
+
+    @Test
+    public void testMethodDependencies() throws Exception {
+        Path helper = fixture(root, "Helper", "Helper");
+        Path caller = fixture(root, "Caller", "Caller");
+        SigTree tree = SigTree.create(root);
+        MethodSignature other = null;
+        for (ClassSignature clazz : tree) {
+            if ("com.mastfrog.sighash.Caller".equals(clazz.name())) {
+                for (MethodSignature m : clazz.methods()) {
+                    if ("call()".equals(m.key())) {
+                        assertEquals(new TreeSet<>(Arrays.asList(caller.toUri().toString(), helper.toUri().toString())),
+                                m.dependencies());
+                    } else if ("other()".equals(m.key())) {
+                        assertEquals(Collections.singleton(caller.toUri().toString()), m.dependencies());
+                        other = m;
+                    }
+                }
+            }
+        }
+        assertNotNull(other);
+        Set<String> invalid = tree.invalidatedBy(Collections.singleton(helper));
+        assertTrue(invalid.contains("com.mastfrog.sighash.Caller#call()"), invalid.toString());
+        assertTrue(invalid.contains("com.mastfrog.sighash.Helper#help(int)"), invalid.toString());
+        assertFalse(invalid.contains("com.mastfrog.sighash.Caller#other()"), invalid.toString());
+
+        fixture(root, "HelperChanged", "Helper");
+        SigTree updated = tree.update(null, Collections.singleton(helper), root);
+        assertEquals(SigTree.create(root).hash("SHA-256", true), updated.hash("SHA-256", true));
+        for (ClassSignature clazz : updated) {
+            for (MethodSignature m : clazz.methods()) {
+                if ("com.mastfrog.sighash.Caller".equals(clazz.name()) && "other()".equals(m.key())) {
+                    assertSame(other, m);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        Path dir = root2.resolve("cache");
+        SigTree tree = SigTree.create(root);
+        ResultCache cache = new ResultCache(dir, 1L << 30);
+        String key = cache.key(null, new SigTreeConfig(), root);
+        assertEquals(key, cache.key(null, new SigTreeConfig(), root));
+        assertNotEquals(key, cache.key(null, new SigTreeConfig().compactTokens(true), root));
+        assertNotEquals(key, cache.key(null, new SigTreeConfig(), root2));
+        assertNull(cache.get(key));
+        assertEquals(tree.hash("SHA-256", true), cache.getOrCreate(null, new SigTreeConfig(), root).hash("SHA-256", true));
+        SigTree cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(tree.hash("SHA-256", true), cached.hash("SHA-256", true));
+        assertEquals(tree.hash("SHA-256", false), cached.hash("SHA-256", false));
+
+        // A truncated entry is a miss, and is replaced
+        Path entry = dir.resolve(key.substring(0, 2)).resolve(key + ".sig");
+        byte[] bytes = Files.readAllBytes(entry);
+        Files.write(entry, Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(cache.get(key));
+        assertFalse(Files.exists(entry));
+        assertEquals(tree.hash("SHA-256", true), cache.getOrCreate(null, new SigTreeConfig(), root).hash("SHA-256", true));
+        assertNotNull(cache.get(key));
+
+        long size;
+        try (Stream<Path> files = Files.walk(dir)) {
+            size = files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(0));
+        new ResultCache(dir, size + size / 2).put("other", tree);
+        assertNull(cache.get(key));
+        assertNotNull(cache.get("other"));
+    }
+
+    @Test
+    public void testManifestServer() throws Exception {
+        Path helper = root.resolve("com/mastfrog/sighash/Helper.java");
+        FileUtils.writeUtf8(helper, "package com.mastfrog.sighash;\n"
+                + "public class Helper {\n"
+                + "    public static int help(int a) {\n"
+                + "        return a * 2;\n"
+                + "    }\n"
+                + "}\n");
+        FileUtils.writeUtf8(root.resolve("com/mastfrog/sighash/Caller.java"), "package com.mastfrog.sighash;\n"
+                + "public class Caller {\n"
+                + "    public int call() {\n"
+                + "        return Helper.help(3);\n"
+                + "    }\n"
+                + "    public int other() {\n"
+                + "        return 3;\n"
+                + "    }\n"
+                + "}\n");
+        Path dir = Files.createDirectories(root2.resolve("manifests"));
+        SigTree a = SigTree.create(root);
+        Manifest.write(dir.resolve("a.shm"), "SHA-256", true, a.hash("SHA-256", true), a.memberDigests("SHA-256", true));
+        Manifest.writeCallers(dir.resolve("a.callers.shm"), a.callers());
+        FileUtils.writeUtf8(helper, "package com.mastfrog.sighash;\n"
+                + "public class Helper {\n"
+                + "    public static int help(int a) {\n"
+                + "        return Math.abs(a) * 2;\n"
+                + "    }\n"
+                + "}\n");
+        Manifest.write(dir.resolve("b.shm"), "SHA-256", true, null, SigTree.create(root).memberDigests("SHA-256", true));
+
+        ManifestServer server = new ManifestServer(dir, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                SigTree.defaultExecutor()).start();
+        try {
+            String base = "http://localhost:" + server.port() + "/";
+            assertEquals(Arrays.asList("a", "b"), ((Map<?, ?>) Json.parse(get(base + "versions", 200))).get("versions"));
+            assertEquals(a.hash("SHA-256", true), ((Map<?, ?>) Json.parse(get(base + "hash/a", 200))).get("hash"));
+            get(base + "hash/b", 404);
+            Map<?, ?> diff = (Map<?, ?>) Json.parse(get(base + "diff/a/b", 200));
+            List<?> changed = (List<?>) diff.get("changed");
+            assertTrue(changed.contains("com.mastfrog.sighash.Helper#help(int)"), changed.toString());
+            assertTrue(changed.contains("com.mastfrog.sighash.Caller#call()"), changed.toString());
+            assertFalse(changed.contains("com.mastfrog.sighash.Caller#other()"), changed.toString());
+            assertEquals(Arrays.asList("com.mastfrog.sighash.Caller#call()"), ((Map<?, ?>) Json.parse(
+                    get(base + "callers/a?key=com.mastfrog.sighash.Helper%23help(int)", 200))).get("callers"));
+            get(base + "member/a?key=com.mastfrog.sighash.Nothing", 404);
+            get(base + "callers/b?key=com.mastfrog.sighash.Helper%23help(int)", 400);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNestedCalleesKeyedByDeclaringClass() throws Exception {
+        fixture(root, "Outer", "Outer");
+        Map<String, ? extends Set<String>> callers = SigTree.create(root).callers();
+        // Outer.twice(int) and Outer.Inner.twice(int) have separate callers
+        assertEquals(Collections.singleton("com.mastfrog.sighash.Outer#own()"),
+                callers.get("com.mastfrog.sighash.Outer#twice(int)"), callers.toString());
+        assertEquals(Collections.singleton("com.mastfrog.sighash.Outer#call()"),
+                callers.get("com.mastfrog.sighash.Outer.Inner#twice(int)"), callers.toString());
+    }
+
+    private static Path fixture(Path root, String resource, String className) throws IOException {
+        Path file = root.resolve("com/mastfrog/sighash/" + className + ".java");
+        FileUtils.writeUtf8(file, Streams.readResourceAsUTF8(SignatureHashGeneratorTest.class, resource + ".txt"));
+        return file;
+    }
+
+    private static String get(String url, int expectedStatus) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            assertEquals(expectedStatus, conn.getResponseCode(), url);
+            try (InputStream in = expectedStatus < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                return new String(in.readAllBytes(), UTF_8);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void testRevisions() throws Exception {
+        SigTree tree = SigTree.create(root);
+        Path helper = root.resolve("com/mastfrog/sighash/Helper.java");
+        try (Revisions revs = new Revisions(null, new SigTreeConfig(), false, Arrays.asList("SHA-256"))) {
+            revs.hash("one", root);
+            FileUtils.writeUtf8(helper, "package com.mastfrog.sighash;\n"
+                    + "public class Helper {\n"
+                    + "    public static int help(int a) {\n"
+                    + "        return a * 2;\n"
+                    + "    }\n"
+                    + "}\n");
+            revs.hash("two", root);
+            Files.delete(helper);
+            revs.hash("three", root);
+            Map<String, Map<String, String>> hashes = revs.hashes();
+            assertEquals(Arrays.asList("one", "two", "three"), new ArrayList<>(hashes.keySet()));
+            assertEquals(tree.hash("SHA-256", false), hashes.get("one").get("SHA-256"));
+            assertEquals(hashes.get("one"), hashes.get("three"));
+            assertNotEquals(hashes.get("one"), hashes.get("two"));
+            assertEquals(Arrays.asList("+two", "-three"), revs.changePoints().get("com.mastfrog.sighash.Helper"));
+            assertEquals(Arrays.asList("+two", "-three"), revs.changePoints().get("com.mastfrog.sighash.Helper#help(int)"));
+            assertEquals(Arrays.asList("com.mastfrog.sighash.Helper", "com.mastfrog.sighash.Helper#<init>()",
+                    "com.mastfrog.sighash.Helper#help(int)"), new ArrayList<>(revs.changePoints().keySet()));
+        }
+    }
+
+    @Test
+    public void testRevisionWithTwoRoots() throws Exception {
+        Path gen = root2.resolve("gen");
+        Files.createDirectories(gen.resolve("com/mastfrog/sighash"));
+        fixture(gen, "Helper", "Helper");
+        fixture(gen, "Caller", "Caller");
+        Path[] roots = Revisions.roots(root + "," + gen);
+        assertEquals(Arrays.asList(root, gen), Arrays.asList(roots));
+        try (Revisions revs = new Revisions(null, new SigTreeConfig(), false, Arrays.asList("SHA-256"))) {
+            revs.hash("one", root);
+            revs.hash("two", roots);
+            assertEquals(SigTree.create(null, roots).hash("SHA-256", false),
+                    revs.hashes().get("two").get("SHA-256"));
+            assertEquals(Arrays.asList("+two"), revs.changePoints().get("com.mastfrog.sighash.Caller#call()"));
+        }
+    }
+
+    @Test
+    public void testCachedRenderingMatchesUncached() throws Exception {
+        TypeRenderer cached = new TypeRenderer();
+        List<String> rendered = new ArrayList<>();
+        Set<JavacTask> finished = new HashSet<>();
+        new SignatureHashGenerator(new Path[] {root}).go(new HashBuilder() {
+            @Override
+            public void enterClass(JavacTask task, TypeMirror type, TypeElement element, Trees trees) {
+                for (Element child : element.getEnclosedElements()) {
+                    List<TypeMirror> types = new ArrayList<>();
+                    types.add(child.asType());
+                    if (child instanceof ExecutableElement) {
+                        ExecutableElement ex = (ExecutableElement) child;
+                        types.add(ex.getReturnType());
+                        for (VariableElement param : ex.getParameters()) {
+                            types.add(param.asType());
+                        }
+                    }
+                    for (TypeMirror tm : types) {
+                        // The baseline rendering was javac's toString(), which
+                        // differs only for type annotations and captures
+                        String expected = tm.toString();
+                        assertEquals(expected, cached.render(tm), expected);
+                        assertEquals(expected, cached.render(tm), expected);
+                        rendered.add(expected);
+                    }
+                }
+            }
+
+            @Override
+            public void taskFinished(JavacTask task) {
+                assertTrue(finished.add(task));
+            }
+        });
+        assertFalse(rendered.isEmpty());
+        assertEquals(1, finished.size());
+    }
+
     private String compare(String msg, SigTree a, SigTree b, boolean deep) {
         StringBuilder sb = new StringBuilder(msg);
         List<Object> as = new ArrayList<>();